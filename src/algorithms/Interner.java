@@ -0,0 +1,140 @@
+package algorithms;
+
+/*************************************************************************
+ *  Compilation:  javac Interner.java
+ *
+ *  Interns UTF-8 byte slices to integer ids and canonical strings.
+ *
+ *************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ *  The <tt>Interner</tt> class maps byte slices of UTF-8 text to dense
+ *  integer ids, in the order of their first appearance, and to a canonical
+ *  string per id. A slice seen before is resolved by comparing bytes,
+ *  without decoding or allocating; a new slice is decoded once.
+ *  <p>
+ *  This implementation uses a linear probing hash table of ids and keeps
+ *  the bytes of all distinct slices in one growing arena. An interner may be
+ *  given a capacity: once it holds that many slices, new ones are not interned.
+ *  The <em>intern</em> operation takes expected time linear in the slice length.
+ *
+ *  @author Valeriya Slovikovskaya vslovik@gmail.com
+ */
+public class Interner {
+
+    private final int capacity;                 // most distinct slices
+    private int N;                              // number of distinct slices
+    private int[] table = new int[64];          // id + 1 by slot, 0 if empty
+    private int[] hashes = new int[32];         // hash by id
+    private int[] starts = new int[32];         // arena offset by id
+    private int[] lengths = new int[32];        // byte length by id
+    private String[] strings = new String[32];  // canonical string by id
+    private byte[] arena = new byte[1 << 12];
+    private int arenaSize;
+
+    /**
+     * Initializes an empty interner of unbounded capacity.
+     */
+    public Interner() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Initializes an empty interner.
+     *
+     * @param capacity most distinct slices to intern, positive
+     */
+    public Interner(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive");
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the number of distinct slices.
+     *
+     * @return the number of distinct slices
+     */
+    public int size() {
+        return N;
+    }
+
+    /**
+     * Interns bytes <tt>buffer[from..to-1]</tt>.
+     *
+     * @param buffer the buffer, read with absolute gets
+     * @param from slice start
+     * @param to slice end
+     * @return id of the slice, -1 for a new slice when the interner is full
+     */
+    public int intern(ByteBuffer buffer, int from, int to) {
+        int h = 0x811c9dc5;
+        for (int i = from; i < to; i++) {
+            h = (h ^ buffer.get(i)) * 0x01000193;
+        }
+
+        int mask = table.length - 1;
+        for (int slot = h & mask; ; slot = (slot + 1) & mask) {
+            int id = table[slot] - 1;
+            if (id < 0) return N == capacity ? -1 : add(buffer, from, to, h, slot);
+            if (hashes[id] == h && equal(id, buffer, from, to)) return id;
+        }
+    }
+
+    /**
+     * Returns the canonical string of an id.
+     *
+     * @param id the id
+     * @return the string
+     */
+    public String string(int id) {
+        return strings[id];
+    }
+
+    // does slice id hold bytes buffer[from..to-1]?
+    private boolean equal(int id, ByteBuffer buffer, int from, int to) {
+        if (lengths[id] != to - from) return false;
+        for (int i = from, j = starts[id]; i < to; i++, j++) {
+            if (buffer.get(i) != arena[j]) return false;
+        }
+        return true;
+    }
+
+    private int add(ByteBuffer buffer, int from, int to, int h, int slot) {
+        int length = to - from;
+        if (N == strings.length) {
+            hashes = Arrays.copyOf(hashes, 2 * N);
+            starts = Arrays.copyOf(starts, 2 * N);
+            lengths = Arrays.copyOf(lengths, 2 * N);
+            strings = Arrays.copyOf(strings, 2 * N);
+        }
+        while (arenaSize + length > arena.length) arena = Arrays.copyOf(arena, 2 * arena.length);
+        for (int i = from; i < to; i++) {
+            arena[arenaSize + i - from] = buffer.get(i);
+        }
+
+        hashes[N] = h;
+        starts[N] = arenaSize;
+        lengths[N] = length;
+        strings[N] = new String(arena, arenaSize, length, StandardCharsets.UTF_8);
+        arenaSize += length;
+        table[slot] = N + 1;
+        if (2 * ++N > table.length) rehash();
+
+        return N - 1;
+    }
+
+    private void rehash() {
+        table = new int[2 * table.length];
+        int mask = table.length - 1;
+        for (int id = 0; id < N; id++) {
+            int slot = hashes[id] & mask;
+            while (table[slot] != 0) slot = (slot + 1) & mask;
+            table[slot] = id + 1;
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+package algorithms;
+
+/*************************************************************************
+ *  Compilation:  javac LRUCache.java
+ *
+ *  Bounded thread-safe cache with least recently used eviction.
+ *
+ *************************************************************************/
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *  The <tt>LRUCache</tt> class represents a bounded cache of key-value pairs.
+ *  When the cache is full, putting a new key evicts the least recently
+ *  used one. It counts hits, misses and evictions to help sizing the cache.
+ *  Keys and values must not be <tt>null</tt>.
+ *  <p>
+ *  This implementation uses an access ordered {@link LinkedHashMap};
+ *  all methods are synchronized. The <em>get</em> and <em>put</em>
+ *  operations take constant expected time.
+ *
+ *  @author Valeriya Slovikovskaya vslovik@gmail.com
+ */
+public class LRUCache<Key, Value> {
+
+    private final int capacity;
+    private final LinkedHashMap<Key, Value> map;
+    private long hits, misses, evictions;
+
+    /**
+     * Initializes an empty cache.
+     *
+     * @param capacity maximal number of entries, positive
+     */
+    public LRUCache(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        this.capacity = capacity;
+        map = new LinkedHashMap<Key, Value>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Value> eldest) {
+                if (size() <= LRUCache.this.capacity) return false;
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns the value associated with the key and marks it as recently used.
+     *
+     * @param key the key
+     * @return the value, <tt>null</tt> on a miss
+     */
+    public synchronized Value get(Key key) {
+        Value val = map.get(key);
+        if (val == null) misses++;
+        else hits++;
+        return val;
+    }
+
+    /**
+     * Inserts the key-value pair, evicting the least recently used pair if the cache is full.
+     *
+     * @param key the key
+     * @param val the value
+     */
+    public synchronized void put(Key key, Value val) {
+        if (key == null || val == null) throw new NullPointerException();
+        map.put(key, val);
+    }
+
+    /**
+     * Removes all pairs. Counters are kept.
+     */
+    public synchronized void clear() {
+        map.clear();
+    }
+
+    /**
+     * Returns the number of cached pairs.
+     *
+     * @return the number of cached pairs
+     */
+    public synchronized int size() {
+        return map.size();
+    }
+
+    /**
+     * Returns the maximal number of cached pairs.
+     *
+     * @return the capacity
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of lookups that found a value.
+     *
+     * @return the number of hits
+     */
+    public synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups that found nothing.
+     *
+     * @return the number of misses
+     */
+    public synchronized long misses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of pairs evicted to respect the capacity.
+     *
+     * @return the number of evictions
+     */
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns counters as a string.
+     *
+     * @return counters
+     */
+    public synchronized String toString() {
+        return "size=" + map.size() + "/" + capacity + " hits=" + hits + " misses=" + misses + " evictions=" + evictions;
+    }
+
+}
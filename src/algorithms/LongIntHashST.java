@@ -0,0 +1,225 @@
+package algorithms;
+
+/*************************************************************************
+ *  Compilation:  javac LongIntHashST.java
+ *
+ *  Symbol table with primitive long keys and int values, implemented
+ *  using open addressing with linear probing.
+ *
+ *************************************************************************/
+
+import java.util.Arrays;
+
+/**
+ *  The <tt>LongIntHashST</tt> class represents a symbol table of
+ *  <tt>long</tt> keys and <tt>int</tt> values that avoids boxing.
+ *  It supports the usual <em>put</em>, <em>get</em>, <em>contains</em>,
+ *  <em>size</em>, and <em>is-empty</em> methods, plus an <em>increment</em>
+ *  method meant for counting.
+ *  A missing key reads as <tt>0</tt>, so the table can be used as a counter
+ *  without a preceding <em>contains</em> check.
+ *  The key <tt>-1</tt> is reserved to mark empty slots.
+ *  <p>
+ *  This implementation uses a linear probing hash table on two parallel
+ *  primitive arrays. The table doubles when it becomes half full.
+ *  The <em>put</em>, <em>get</em>, <em>contains</em> and <em>increment</em>
+ *  operations take constant expected time.
+ *
+ *  @author Valeriya Slovikovskaya vslovik@gmail.com
+ */
+public class LongIntHashST {
+
+    private static final long EMPTY = -1L;
+
+    private int N;           // number of key-value pairs
+    private int M;           // size of the table, always a power of two
+    private long[] keys;
+    private int[] vals;
+
+    /**
+     * Initializes an empty symbol table.
+     */
+    public LongIntHashST() {
+        this(16);
+    }
+
+    /**
+     * Initializes an empty symbol table able to hold <tt>capacity</tt> keys
+     * without resizing.
+     *
+     * @param capacity expected number of keys
+     */
+    public LongIntHashST(int capacity) {
+        M = 16;
+        while (M < 2 * capacity) M <<= 1;
+        keys = new long[M];
+        vals = new int[M];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * Returns the number of key-value pairs in this symbol table.
+     *
+     * @return the number of key-value pairs
+     */
+    public int size() {
+        return N;
+    }
+
+    /**
+     * Is this symbol table empty?
+     *
+     * @return <tt>true</tt> if this symbol table is empty and <tt>false</tt> otherwise
+     */
+    public boolean isEmpty() {
+        return N == 0;
+    }
+
+    /**
+     * Does this symbol table contain the given key?
+     *
+     * @param key the key
+     * @return <tt>true</tt> if this symbol table contains <tt>key</tt>
+     */
+    public boolean contains(long key) {
+        if (key == EMPTY) return false;
+        return keys[slot(key)] == key;
+    }
+
+    /**
+     * Returns the value associated with the given key.
+     *
+     * @param key the key
+     * @return the value associated with the key, <tt>0</tt> if the key is absent
+     */
+    public int get(long key) {
+        if (key == EMPTY) return 0;
+        int i = slot(key);
+        return keys[i] == key ? vals[i] : 0;
+    }
+
+    /**
+     * Inserts the key-value pair, overwriting the old value if the key is present.
+     *
+     * @param key the key
+     * @param val the value
+     */
+    public void put(long key, int val) {
+        if (key == EMPTY) throw new IllegalArgumentException("Reserved key: " + key);
+        int i = slot(key);
+        if (keys[i] != key) {
+            if (2 * (N + 1) > M) {
+                resize(2 * M);
+                i = slot(key);
+            }
+            keys[i] = key;
+            N++;
+        }
+        vals[i] = val;
+    }
+
+    /**
+     * Adds <tt>delta</tt> to the value associated with the key,
+     * inserting the key with value <tt>delta</tt> if it is absent.
+     *
+     * @param key the key
+     * @param delta the increment
+     * @return the new value
+     */
+    public int increment(long key, int delta) {
+        if (key == EMPTY) throw new IllegalArgumentException("Reserved key: " + key);
+        int i = slot(key);
+        if (keys[i] != key) {
+            if (2 * (N + 1) > M) {
+                resize(2 * M);
+                i = slot(key);
+            }
+            keys[i] = key;
+            vals[i] = 0;
+            N++;
+        }
+        vals[i] += delta;
+
+        return vals[i];
+    }
+
+    /**
+     * Returns all keys of the symbol table in no particular order.
+     *
+     * @return array of keys
+     */
+    public long[] keys() {
+        long[] a = new long[N];
+        int k = 0;
+        for (int i = 0; i < M; i++) {
+            if (keys[i] != EMPTY) a[k++] = keys[i];
+        }
+
+        return a;
+    }
+
+    /**
+     * Returns all keys of the symbol table in ascending order.
+     *
+     * @return sorted array of keys
+     */
+    public long[] sortedKeys() {
+        long[] a = keys();
+        Arrays.sort(a);
+
+        return a;
+    }
+
+    /**
+     * Finds the slot holding the key or the empty slot where it belongs
+     *
+     * @param key the key
+     * @return slot index
+     */
+    private int slot(long key) {
+        int i = hash(key);
+        while (keys[i] != EMPTY && keys[i] != key) {
+            i = (i + 1) & (M - 1);
+        }
+
+        return i;
+    }
+
+    /**
+     * Mixes the key bits (MurmurHash3 finalizer)
+     *
+     * @param key the key
+     * @return slot index
+     */
+    private int hash(long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+
+        return (int) h & (M - 1);
+    }
+
+    /**
+     * Rehashes all keys into a table of the given size
+     *
+     * @param capacity new table size, a power of two
+     */
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldVals = vals;
+        M = capacity;
+        keys = new long[M];
+        vals = new int[M];
+        Arrays.fill(keys, EMPTY);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == EMPTY) continue;
+            int i = slot(oldKeys[j]);
+            keys[i] = oldKeys[j];
+            vals[i] = oldVals[j];
+        }
+    }
+
+}
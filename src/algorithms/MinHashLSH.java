@@ -0,0 +1,235 @@
+package algorithms;
+
+/*************************************************************************
+ *  Compilation:  javac MinHashLSH.java
+ *
+ *  Near-duplicate filter for sequences of ids in fixed memory:
+ *  MinHash signatures of shingles bucketed by locality-sensitive hashing.
+ *
+ *************************************************************************/
+
+import java.util.Arrays;
+
+/**
+ *  The <tt>MinHashLSH</tt> class represents a filter that keeps sequences of
+ *  ids, such as the token ids of a phrase, and turns down the ones that are
+ *  near duplicates of a kept sequence. Sequences are sets of shingles, runs of
+ *  consecutive ids; two sequences are near duplicates when the estimated Jaccard
+ *  similarity of their shingle sets reaches a threshold.
+ *  <p>
+ *  Each sequence gets a MinHash signature of <em>bands</em> &times; <em>rows</em>
+ *  minimal hash values. Sequences sharing all rows of a band land in the same
+ *  bucket of the band; only the sequences found in the buckets of a new one are
+ *  compared with it, through the lowest byte of each signature value. Memory is
+ *  fixed: signatures of the last <em>window</em> kept sequences are held in a
+ *  ring, and each band bucket remembers the last sequence put in it, so older
+ *  sequences are forgotten. The <em>add</em> operation takes time proportional
+ *  to the number of shingles times the signature length.
+ *
+ *  @author Valeriya Slovikovskaya vslovik@gmail.com
+ */
+public class MinHashLSH {
+
+    private final int bands, rows, k;    // k = bands * rows signature values
+    private final int shingle;           // ids per shingle
+    private final double similarity;     // least similarity of near duplicates
+    private final long[] a, b;           // hash functions: (a * x + b) >>> 1, a odd
+    private final long[] mins;           // signature being taken
+    private final byte[] signatures;     // lowest bytes of kept signatures, k per sequence
+    private final int window;            // number of kept signatures
+    private int next;                    // ring slot of the next kept signature
+    private final int[][] buckets;       // by band and bucket: slot of the last sequence put, plus one
+    private final int mask;              // bucket count minus one
+    private long added, duplicates;
+
+    /**
+     * Initializes an empty filter.
+     *
+     * @param window number of last kept sequences to compare with, positive
+     * @param bands number of LSH bands
+     * @param rows number of signature values per band
+     * @param shingle number of consecutive ids per shingle, positive
+     * @param similarity least estimated Jaccard similarity of near duplicates
+     */
+    public MinHashLSH(int window, int bands, int rows, int shingle, double similarity) {
+        if (window <= 0 || bands <= 0 || rows <= 0 || shingle <= 0)
+            throw new IllegalArgumentException("Window, bands, rows and shingle must be positive");
+        if ((long) window * bands * rows > Integer.MAX_VALUE || window > 1 << 28)
+            throw new IllegalArgumentException("Window too large: " + window);
+        this.window = window;
+        this.bands = bands;
+        this.rows = rows;
+        this.k = bands * rows;
+        this.shingle = shingle;
+        this.similarity = similarity;
+
+        a = new long[k];
+        b = new long[k];
+        long seed = 0;
+        for (int i = 0; i < k; i++) {
+            a[i] = spread(seed += 0x9e3779b97f4a7c15L) | 1;
+            b[i] = spread(seed += 0x9e3779b97f4a7c15L);
+        }
+        mins = new long[k];
+        signatures = new byte[window * k];
+
+        int size = Math.max(Integer.highestOneBit(window - 1) << 1, 1);
+        buckets = new int[bands][size];
+        mask = size - 1;
+    }
+
+    /**
+     * Initializes an empty filter with 16 bands of 4 rows over pairs of ids.
+     *
+     * @param window number of last kept sequences to compare with, positive
+     * @param similarity least estimated Jaccard similarity of near duplicates
+     */
+    public MinHashLSH(int window, double similarity) {
+        this(window, 16, 4, 2, similarity);
+    }
+
+    /**
+     * Keeps sequence unless it is a near duplicate of a kept one.
+     * Sequences shorter than a shingle make one shingle, empty ones are always kept.
+     *
+     * @param ids array holding the sequence of non-negative ids
+     * @param from first position of the sequence
+     * @param to position after the sequence
+     * @return false if the sequence is a near duplicate
+     */
+    public boolean add(int[] ids, int from, int to) {
+        return add(ids, null, from, to);
+    }
+
+    /**
+     * Keeps sequence unless it is a near duplicate of a kept one, taking
+     * the string at the same position for each negative id: a string is
+     * hashed into 63 bits apart from the ids, so it only matches equal strings
+     * but for hash collisions.
+     *
+     * @param ids array holding the sequence, negative for no id
+     * @param strings array holding the strings of the sequence, null if no id is negative
+     * @param from first position of the sequence
+     * @param to position after the sequence
+     * @return false if the sequence is a near duplicate
+     */
+    public boolean add(int[] ids, String[] strings, int from, int to) {
+        added++;
+        if (to <= from) return true;
+
+        Arrays.fill(mins, Long.MAX_VALUE);
+        int w = Math.min(shingle, to - from);
+        for (int i = from; i + w <= to; i++) {
+            long h = 0;
+            for (int j = i; j < i + w; j++) {
+                long x = ids[j] >= 0 || strings == null ? ids[j] + 1 : hash(strings[j]);
+                h = (h + x) * 0xc2b2ae3d27d4eb4fL;
+            }
+            h = spread(h);
+            for (int f = 0; f < k; f++) {
+                long v = (a[f] * h + b[f]) >>> 1;
+                if (v < mins[f]) mins[f] = v;
+            }
+        }
+
+        for (int t = 0; t < bands; t++) {
+            int slot = buckets[t][bucket(t)] - 1;
+            if (slot >= 0 && similar(slot)) {
+                duplicates++;
+                return false;
+            }
+        }
+
+        int slot = next;
+        next = next + 1 == window ? 0 : next + 1;
+        for (int f = 0; f < k; f++) {
+            signatures[slot * k + f] = (byte) mins[f];
+        }
+        for (int t = 0; t < bands; t++) {
+            buckets[t][bucket(t)] = slot + 1;
+        }
+
+        return true;
+    }
+
+    /**
+     * Forgets kept sequences and resets counters, so that sequences
+     * offered again in the same order get the same answers.
+     */
+    public void clear() {
+        for (int[] band : buckets) {
+            Arrays.fill(band, 0);
+        }
+        next = 0;
+        added = 0;
+        duplicates = 0;
+    }
+
+    /**
+     * Returns the number of sequences offered.
+     *
+     * @return the number of sequences offered
+     */
+    public long added() {
+        return added;
+    }
+
+    /**
+     * Returns the number of sequences turned down as near duplicates.
+     *
+     * @return the number of near duplicates
+     */
+    public long duplicates() {
+        return duplicates;
+    }
+
+    /**
+     * Returns counters as a string.
+     *
+     * @return counters
+     */
+    public String toString() {
+        return "window=" + window + " sequences=" + added + " near duplicates=" + duplicates;
+    }
+
+    // bucket of the signature being taken in band t
+    private int bucket(int t) {
+        long h = t;
+        for (int r = t * rows; r < (t + 1) * rows; r++) {
+            h = (h + mins[r]) * 0x9e3779b97f4a7c15L;
+        }
+        return (int) spread(h) & mask;
+    }
+
+    // is the signature being taken similar enough to the kept one in slot?
+    // Lowest bytes of unrelated values match one time in 256, the estimate corrects for it.
+    private boolean similar(int slot) {
+        int equal = 0;
+        for (int f = 0; f < k; f++) {
+            if (signatures[slot * k + f] == (byte) mins[f]) equal++;
+        }
+        double estimate = ((double) equal / k - 1.0 / 256) / (1 - 1.0 / 256);
+
+        return estimate >= similarity;
+    }
+
+    // 64-bit FNV-1a hash of string, spread, with the sign bit set apart from ids
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        return spread(h) | Long.MIN_VALUE;
+    }
+
+    // MurmurHash3 finalizer
+    private static long spread(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb93e81a85c0dL;
+        k ^= k >>> 33;
+        return k;
+    }
+
+}
@@ -0,0 +1,200 @@
+package algorithms;
+
+/*************************************************************************
+ *  Compilation:  javac QuantileSketch.java
+ *
+ *  Fixed-memory quantile sketch of positive doubles with relative accuracy,
+ *  on logarithmic buckets.
+ *
+ *************************************************************************/
+
+/**
+ *  The <tt>QuantileSketch</tt> class summarizes a stream of doubles, such as
+ *  phrase scores spread over hundreds of orders of magnitude, to answer
+ *  quantile and rank queries. Positive values are counted in logarithmic
+ *  buckets: bucket <em>i</em> holds the values in
+ *  (<em>&gamma;</em><sup><em>i</em>-1</sup>, <em>&gamma;</em><sup><em>i</em></sup>]
+ *  with <em>&gamma;</em> = (1 + <em>&alpha;</em>) / (1 - <em>&alpha;</em>),
+ *  so a quantile is off by a factor of at most 1 &plusmn; <em>&alpha;</em>.
+ *  Values at or below zero are counted together and <tt>NaN</tt>s are left out.
+ *  <p>
+ *  Buckets cover every positive double, so memory is fixed by the accuracy
+ *  alone (about 580 KB at 1%). The <em>add</em> operation takes constant time;
+ *  sketches of the same accuracy can be merged, the result does not depend
+ *  on the order of values or merges.
+ *
+ *  @author Valeriya Slovikovskaya vslovik@gmail.com
+ */
+public class QuantileSketch {
+
+    private final double accuracy;
+    private final double gamma, logGamma;
+    private final int offset;            // index of the first bucket
+    private final long[] counts;         // values by bucket
+    private long count;                  // values added, NaNs left out
+    private long nonPositive;            // values at or below zero
+    private double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+    private double minPositive = Double.POSITIVE_INFINITY;
+
+    /**
+     * Initializes an empty sketch.
+     *
+     * @param accuracy relative accuracy of quantiles, between 0 and 1
+     */
+    public QuantileSketch(double accuracy) {
+        if (!(accuracy > 0 && accuracy < 1)) throw new IllegalArgumentException("Accuracy must be in (0, 1): " + accuracy);
+        this.accuracy = accuracy;
+        gamma = (1 + accuracy) / (1 - accuracy);
+        logGamma = Math.log(gamma);
+        offset = index(Double.MIN_VALUE);
+        counts = new long[index(Double.MAX_VALUE) - offset + 1];
+    }
+
+    /**
+     * Adds value.
+     *
+     * @param x the value, ignored if <tt>NaN</tt>
+     */
+    public void add(double x) {
+        if (Double.isNaN(x)) return;
+        count++;
+        if (x < min) min = x;
+        if (x > max) max = x;
+        if (x <= 0) {
+            nonPositive++;
+            return;
+        }
+        if (x < minPositive) minPositive = x;
+        counts[bucket(x)]++;
+    }
+
+    /**
+     * Adds values of another sketch of the same accuracy.
+     *
+     * @param that the sketch
+     */
+    public void merge(QuantileSketch that) {
+        if (that.accuracy != accuracy) throw new IllegalArgumentException("Sketch accuracies differ");
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += that.counts[i];
+        }
+        count += that.count;
+        nonPositive += that.nonPositive;
+        min = Math.min(min, that.min);
+        max = Math.max(max, that.max);
+        minPositive = Math.min(minPositive, that.minPositive);
+    }
+
+    /**
+     * Returns the value at quantile <em>q</em>: the value that
+     * <em>q</em> &times; (count - 1) added values are below of.
+     *
+     * @param q the quantile, between 0 and 1
+     * @return the value, exact for 0 and 1; <tt>NaN</tt> if the sketch is empty
+     */
+    public double quantile(double q) {
+        if (q < 0 || q > 1) throw new IllegalArgumentException("Quantile must be in [0, 1]: " + q);
+        if (count == 0) return Double.NaN;
+        long rank = (long) Math.floor(q * (count - 1));
+        if (rank == 0) return min;
+        if (rank == count - 1) return max;
+        if (rank < nonPositive) return Math.min(0.0, max);
+
+        long seen = nonPositive;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen > rank) {
+                double value = 2 * Math.pow(gamma, i + offset) / (gamma + 1);
+                return Math.max(min, Math.min(max, value));
+            }
+        }
+
+        return max;
+    }
+
+    /**
+     * Returns the number of added values at or below <em>x</em>,
+     * counting the bucket of <em>x</em> in full.
+     *
+     * @param x the value
+     * @return the number of values at or below x
+     */
+    public long rank(double x) {
+        if (Double.isNaN(x) || x < min) return 0;
+        if (x >= max) return count;
+        if (x <= 0) return nonPositive;
+
+        long seen = nonPositive;
+        int last = bucket(x);
+        for (int i = 0; i <= last; i++) {
+            seen += counts[i];
+        }
+
+        return seen;
+    }
+
+    /**
+     * Returns the number of added values, <tt>NaN</tt>s left out.
+     *
+     * @return the number of values
+     */
+    public long count() {
+        return count;
+    }
+
+    /**
+     * Returns the number of values at or below zero.
+     *
+     * @return the number of values at or below zero
+     */
+    public long nonPositive() {
+        return nonPositive;
+    }
+
+    /**
+     * Returns the least value.
+     *
+     * @return the least value, positive infinity if empty
+     */
+    public double min() {
+        return min;
+    }
+
+    /**
+     * Returns the greatest value.
+     *
+     * @return the greatest value, negative infinity if empty
+     */
+    public double max() {
+        return max;
+    }
+
+    /**
+     * Returns the least positive value.
+     *
+     * @return the least positive value, positive infinity if none
+     */
+    public double minPositive() {
+        return minPositive;
+    }
+
+    /**
+     * Returns the relative accuracy of quantiles.
+     *
+     * @return the accuracy
+     */
+    public double accuracy() {
+        return accuracy;
+    }
+
+    // bucket of positive value x, infinity in the last one
+    private int bucket(double x) {
+        return Math.min(index(x) - offset, counts.length - 1);
+    }
+
+    // logarithmic index of positive value x
+    private int index(double x) {
+        return (int) Math.ceil(Math.log(x) / logGamma);
+    }
+
+}
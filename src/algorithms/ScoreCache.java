@@ -0,0 +1,169 @@
+package algorithms;
+
+/*************************************************************************
+ *  Compilation:  javac ScoreCache.java
+ *
+ *  Bounded thread-safe cache of double values by 128 bit keys.
+ *
+ *************************************************************************/
+
+/**
+ *  The <tt>ScoreCache</tt> class represents a bounded cache of
+ *  <tt>double</tt> values by 128 bit keys, given as two <tt>long</tt>s,
+ *  that avoids boxing. A key can only be cached in one small set of slots;
+ *  when the set is full, putting a new key evicts the least recently used
+ *  key of the set. It counts hits, misses and evictions to help sizing the
+ *  cache. <tt>NaN</tt> reads as a miss, so <tt>NaN</tt> values are not cached.
+ *  <p>
+ *  This implementation is a set associative table on parallel primitive
+ *  arrays; all methods are synchronized. The <em>get</em> and <em>put</em>
+ *  operations take constant time.
+ *
+ *  @author Valeriya Slovikovskaya vslovik@gmail.com
+ */
+public class ScoreCache {
+
+    private static final int WAYS = 4;  // slots per set
+
+    private final int sets;             // number of sets, a power of two
+    private final long[] keys1, keys2;
+    private final double[] values;
+    private final long[] stamps;        // last use by slot, 0 for an empty slot
+    private long clock;
+    private int N;                      // number of cached keys
+    private long hits, misses, evictions;
+
+    /**
+     * Initializes an empty cache.
+     *
+     * @param capacity maximal number of entries, positive, rounded up to a power of two
+     */
+    public ScoreCache(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        int s = 1;
+        while ((long) s * WAYS < capacity) s <<= 1;
+        sets = s;
+        keys1 = new long[s * WAYS];
+        keys2 = new long[s * WAYS];
+        values = new double[s * WAYS];
+        stamps = new long[s * WAYS];
+    }
+
+    /**
+     * Returns the value associated with the key and marks it as recently used.
+     *
+     * @param key1 the key high bits
+     * @param key2 the key low bits
+     * @return the value, <tt>NaN</tt> if the key is not cached
+     */
+    public synchronized double get(long key1, long key2) {
+        int base = base(key1);
+        for (int i = base; i < base + WAYS; i++) {
+            if (stamps[i] != 0 && keys1[i] == key1 && keys2[i] == key2) {
+                stamps[i] = ++clock;
+                hits++;
+                return values[i];
+            }
+        }
+        misses++;
+
+        return Double.NaN;
+    }
+
+    /**
+     * Caches the value under the key, evicting the least recently used
+     * key of its set if the set is full.
+     *
+     * @param key1 the key high bits
+     * @param key2 the key low bits
+     * @param value the value, ignored if <tt>NaN</tt>
+     */
+    public synchronized void put(long key1, long key2, double value) {
+        if (Double.isNaN(value)) return;
+        int base = base(key1), victim = base;
+        for (int i = base; i < base + WAYS; i++) {
+            if (stamps[i] != 0 && keys1[i] == key1 && keys2[i] == key2) {
+                values[i] = value;
+                stamps[i] = ++clock;
+                return;
+            }
+            if (stamps[i] < stamps[victim]) victim = i;
+        }
+        if (stamps[victim] == 0) N++;
+        else evictions++;
+        keys1[victim] = key1;
+        keys2[victim] = key2;
+        values[victim] = value;
+        stamps[victim] = ++clock;
+    }
+
+    /**
+     * Returns the number of cached keys.
+     *
+     * @return the number of cached keys
+     */
+    public synchronized int size() {
+        return N;
+    }
+
+    /**
+     * Returns the maximal number of cached keys.
+     *
+     * @return the capacity
+     */
+    public int capacity() {
+        return sets * WAYS;
+    }
+
+    /**
+     * Returns the number of lookups that found a value.
+     *
+     * @return the number of hits
+     */
+    public synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups that found no value.
+     *
+     * @return the number of misses
+     */
+    public synchronized long misses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of keys evicted to make room for new ones.
+     *
+     * @return the number of evictions
+     */
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the share of lookups that found a value.
+     *
+     * @return the hit rate, 0 if there were no lookups
+     */
+    public synchronized double hitRate() {
+        return hits + misses == 0 ? 0.0 : (double) hits / (hits + misses);
+    }
+
+    /**
+     * Returns a string with the size, capacity, counters and hit rate of the cache.
+     *
+     * @return a string representation of the cache counters
+     */
+    public synchronized String toString() {
+        return String.format("size=%d/%d hits=%d misses=%d evictions=%d hit rate=%.1f%%",
+                N, capacity(), hits, misses, evictions, 100 * hitRate());
+    }
+
+    // first slot of the set of key
+    private int base(long key1) {
+        return ((int) key1 & (sets - 1)) * WAYS;
+    }
+
+}
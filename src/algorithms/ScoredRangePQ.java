@@ -0,0 +1,209 @@
+package algorithms;
+
+/*************************************************************************
+ *  Compilation:  javac ScoredRangePQ.java
+ *
+ *  Bounded priority queue of scored file ranges on primitive arrays.
+ *
+ *************************************************************************/
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ *  The <tt>ScoredRangePQ</tt> class keeps the best <em>k</em> of a stream of
+ *  (score, offset, length) triples, where offset and length locate a record
+ *  in a file. Depending on the orientation the best triples are those with
+ *  the highest or with the lowest scores; among equal scores the smaller
+ *  offset is better, so the earliest records are kept.
+ *  <p>
+ *  This implementation uses a binary heap on parallel primitive arrays
+ *  with the worst kept triple at the root, so no object is allocated per
+ *  triple. The <em>offer</em> operation takes logarithmic time.
+ *  The <em>sort</em> operation orders the triples in place.
+ *
+ *  @author Valeriya Slovikovskaya vslovik@gmail.com
+ */
+public class ScoredRangePQ {
+
+    private final int capacity;     // maximal number of triples
+    private final boolean highest;  // keep highest scores if true, lowest otherwise
+    private int N;                  // number of triples
+    private boolean sorted;         // ordered best first, no longer a heap
+    private double[] scores;
+    private long[] offsets;
+    private int[] lengths;
+
+    /**
+     * Initializes an empty queue.
+     *
+     * @param capacity maximal number of triples to keep
+     * @param highest keep the highest scores if <tt>true</tt>, the lowest otherwise
+     */
+    public ScoredRangePQ(int capacity, boolean highest) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        this.capacity = capacity;
+        this.highest = highest;
+        int initial = Math.min(capacity, 16);
+        scores = new double[initial];
+        offsets = new long[initial];
+        lengths = new int[initial];
+    }
+
+    /**
+     * Returns the number of kept triples.
+     *
+     * @return the number of kept triples
+     */
+    public int size() {
+        return N;
+    }
+
+    /**
+     * Is the queue full, so that a triple has to beat the worst kept one?
+     *
+     * @return <tt>true</tt> if the queue holds <em>k</em> triples
+     */
+    public boolean isFull() {
+        return N == capacity;
+    }
+
+    /**
+     * Returns the score of the worst kept triple.
+     *
+     * @return the worst kept score
+     * @throws NoSuchElementException if the queue is empty
+     */
+    public double worst() {
+        if (N == 0) throw new NoSuchElementException("Queue is empty");
+        return sorted ? scores[N - 1] : scores[0];
+    }
+
+    /**
+     * Offers a triple, keeping it if it is among the best <em>k</em> so far.
+     *
+     * @param score the score
+     * @param offset the record offset
+     * @param length the record length
+     * @return <tt>true</tt> if the triple was kept
+     */
+    public boolean offer(double score, long offset, int length) {
+        if (sorted) throw new IllegalStateException("Queue is sorted");
+        if (N < capacity) {
+            if (N == scores.length) resize(Math.min(2 * N, capacity));
+            set(N, score, offset, length);
+            swim(N++);
+            return true;
+        }
+        if (!better(score, offset, scores[0], offsets[0])) return false;
+        set(0, score, offset, length);
+        sink(0, N);
+        return true;
+    }
+
+    /**
+     * Offers all triples of another queue.
+     *
+     * @param that the other queue
+     */
+    public void offerAll(ScoredRangePQ that) {
+        for (int i = 0; i < that.N; i++) {
+            offer(that.scores[i], that.offsets[i], that.lengths[i]);
+        }
+    }
+
+    /**
+     * Orders the kept triples from the best to the worst. Afterwards the
+     * triples are read by position, and no more triples can be offered.
+     */
+    public void sort() {
+        if (sorted) return;
+        sorted = true;
+        for (int n = N - 1; n > 0; n--) {
+            swap(0, n);
+            sink(0, n);
+        }
+    }
+
+    /**
+     * Returns the score at position i.
+     *
+     * @param i the position
+     * @return the score
+     */
+    public double score(int i) {
+        return scores[i];
+    }
+
+    /**
+     * Returns the record offset at position i.
+     *
+     * @param i the position
+     * @return the offset
+     */
+    public long offset(int i) {
+        return offsets[i];
+    }
+
+    /**
+     * Returns the record length at position i.
+     *
+     * @param i the position
+     * @return the length
+     */
+    public int length(int i) {
+        return lengths[i];
+    }
+
+   /***********************************************************************
+    * Helper functions for compares, swaps and heap restoration.
+    **********************************************************************/
+
+    // is triple (s1, o1) better than (s2, o2)?
+    private boolean better(double s1, long o1, double s2, long o2) {
+        int c = Double.compare(s1, s2);
+        if (c != 0) return highest ? c > 0 : c < 0;
+        return o1 < o2;
+    }
+
+    // is the triple at i worse than the triple at j?
+    private boolean worse(int i, int j) {
+        return better(scores[j], offsets[j], scores[i], offsets[i]);
+    }
+
+    private void swim(int k) {
+        while (k > 0 && worse(k, (k - 1) / 2)) {
+            swap(k, (k - 1) / 2);
+            k = (k - 1) / 2;
+        }
+    }
+
+    private void sink(int k, int n) {
+        while (2 * k + 1 < n) {
+            int j = 2 * k + 1;
+            if (j + 1 < n && worse(j + 1, j)) j++;
+            if (!worse(j, k)) break;
+            swap(k, j);
+            k = j;
+        }
+    }
+
+    private void set(int i, double score, long offset, int length) {
+        scores[i] = score;
+        offsets[i] = offset;
+        lengths[i] = length;
+    }
+
+    private void swap(int i, int j) {
+        double s = scores[i]; scores[i] = scores[j]; scores[j] = s;
+        long o = offsets[i]; offsets[i] = offsets[j]; offsets[j] = o;
+        int l = lengths[i]; lengths[i] = lengths[j]; lengths[j] = l;
+    }
+
+    private void resize(int capacity) {
+        scores = Arrays.copyOf(scores, capacity);
+        offsets = Arrays.copyOf(offsets, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+    }
+
+}
@@ -0,0 +1,37 @@
+package algorithms;
+
+/**
+ *  The <tt>StringST</tt> interface represents a symbol table
+ *  with string keys and generic values, with the conventions of {@link TST}:
+ *  keys are non-empty and setting a value to <tt>null</tt> deletes the key.
+ *
+ *  @author Valeriya Slovikovskaya vslovik@gmail.com
+ */
+public interface StringST<Value> {
+
+    /**
+     * Returns the number of key-value pairs in this symbol table.
+     * @return the number of key-value pairs in this symbol table
+     */
+    int size();
+
+    /**
+     * Returns the value associated with the given key.
+     * @param key the key
+     * @return the value associated with the given key, <tt>null</tt> if there is none
+     */
+    Value get(String key);
+
+    /**
+     * Inserts the key-value pair into the symbol table, deletes the key if the value is <tt>null</tt>.
+     * @param key the key
+     * @param val the value
+     */
+    void put(String key, Value val);
+
+    /**
+     * Returns all keys in the symbol table as an <tt>Iterable</tt>.
+     * @return all keys in the symbol table
+     */
+    Iterable<String> keys();
+}
@@ -0,0 +1,216 @@
+package algorithms;
+
+/*************************************************************************
+ *  Compilation:  javac SuffixTST.java
+ *
+ *  Symbol table with string keys, implemented using a ternary search
+ *  trie (TST) over reversed keys, for longest suffix lookups.
+ *
+ *  Remarks
+ *  --------
+ *    - can't use a key that is the empty string ""
+ *
+ *************************************************************************/
+
+/**
+ *  The <tt>SuffixTST</tt> class represents a symbol table of key-value
+ *  pairs, with string keys and generic values, meant for suffixes.
+ *  Keys are stored backwards, so that a lookup walks the characters of
+ *  a word from its end once and meets every stored suffix of the word
+ *  on the way, shortest first. It supports the usual <em>put</em>,
+ *  <em>get</em>, <em>size</em> and <em>keys</em> methods, and finding the
+ *  <em>longest suffix</em> of a word in the symbol table without creating
+ *  intermediate strings.
+ *  Keys may be given as a range of a <tt>CharSequence</tt>.
+ *  Setting the value associated with a key to <tt>null</tt> deletes the key.
+ *  <p>
+ *  The <em>keys</em> method returns keys ordered by their reversed strings.
+ *
+ *  @author Valeriya Slovikovskaya vslovik@gmail.com
+ */
+public class SuffixTST<Value> implements StringST<Value> {
+    private int N;              // size
+    private Node<Value> root;   // root of TST
+
+    private static class Node<Value> {
+        private char c;                        // character
+        private Node<Value> left, mid, right;  // left, middle, and right subtries
+        private Value val;                     // value associated with string
+    }
+
+    /**
+     * Initializes an empty symbol table.
+     */
+    public SuffixTST() {
+    }
+
+    /**
+     * Returns the number of key-value pairs in this symbol table.
+     * @return the number of key-value pairs in this symbol table
+     */
+    public int size() {
+        return N;
+    }
+
+    /**
+     * Returns the value associated with the given key.
+     * @param key the key
+     * @return the value associated with the given key, <tt>null</tt> if there is none
+     */
+    public Value get(String key) {
+        return get(key, 0, key.length());
+    }
+
+    /**
+     * Returns the value associated with the key <tt>s[start..end-1]</tt>.
+     * @param s the character sequence
+     * @param start key start
+     * @param end key end
+     * @return the value associated with the key, <tt>null</tt> if there is none
+     */
+    public Value get(CharSequence s, int start, int end) {
+        if (start >= end) throw new IllegalArgumentException("key must have length >= 1");
+        Node<Value> x = node(s, start, end);
+        return x == null ? null : x.val;
+    }
+
+    /**
+     * Inserts the key-value pair into the symbol table, deletes the key if the value is <tt>null</tt>.
+     * @param key the key
+     * @param val the value
+     */
+    public void put(String key, Value val) {
+        put(key, 0, key.length(), val);
+    }
+
+    /**
+     * Inserts the key <tt>s[start..end-1]</tt> with the value into the symbol table,
+     * deletes the key if the value is <tt>null</tt>.
+     * @param s the character sequence
+     * @param start key start
+     * @param end key end
+     * @param val the value
+     */
+    public void put(CharSequence s, int start, int end, Value val) {
+        if (start >= end) throw new IllegalArgumentException("key must have length >= 1");
+        Node<Value> x = node(s, start, end);
+        if (val == null) {
+            if (x != null && x.val != null) {
+                x.val = null;
+                N--;
+            }
+            return;
+        }
+        if (x == null || x.val == null) N++;
+        root = put(root, s, start, end - 1, val);
+    }
+
+    private Node<Value> put(Node<Value> x, CharSequence s, int start, int d, Value val) {
+        char c = s.charAt(d);
+        if (x == null) {
+            x = new Node<Value>();
+            x.c = c;
+        }
+        if      (c < x.c)  x.left  = put(x.left,  s, start, d, val);
+        else if (c > x.c)  x.right = put(x.right, s, start, d, val);
+        else if (d > start) x.mid  = put(x.mid,   s, start, d - 1, val);
+        else               x.val   = val;
+        return x;
+    }
+
+    // node of key s[start..end-1], walking from its last character
+    private Node<Value> node(CharSequence s, int start, int end) {
+        Node<Value> x = root;
+        int d = end - 1;
+        while (x != null) {
+            char c = s.charAt(d);
+            if      (c < x.c) x = x.left;
+            else if (c > x.c) x = x.right;
+            else if (d > start) {
+                d--;
+                x = x.mid;
+            }
+            else return x;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the value of the longest key that is a suffix of <tt>s[0..end-1]</tt>
+     * and is at most <tt>maxLength</tt> characters long.
+     * @param s the character sequence
+     * @param end end of the word
+     * @param maxLength maximal suffix length
+     * @return the value of the longest suffix, <tt>null</tt> if no suffix is in the symbol table
+     */
+    public Value longestSuffixOf(CharSequence s, int end, int maxLength) {
+        Value val = null;
+        Node<Value> x = root;
+        int d = end - 1, stop = Math.max(end - maxLength, 0);
+        while (x != null && d >= stop) {
+            char c = s.charAt(d);
+            if      (c < x.c) x = x.left;
+            else if (c > x.c) x = x.right;
+            else {
+                if (x.val != null) val = x.val;
+                d--;
+                x = x.mid;
+            }
+        }
+        return val;
+    }
+
+    /**
+     * Collects values of all keys that are suffixes of <tt>s[0..end-1]</tt>
+     * at most <tt>maxLength</tt> characters long, longest suffix first.
+     * @param s the character sequence
+     * @param end end of the word
+     * @param maxLength maximal suffix length
+     * @param values buffer of at least <tt>maxLength</tt> values
+     * @return the number of values collected
+     */
+    public int suffixValues(CharSequence s, int end, int maxLength, Value[] values) {
+        int k = 0;
+        Node<Value> x = root;
+        int d = end - 1, stop = Math.max(end - maxLength, 0);
+        while (x != null && d >= stop) {
+            char c = s.charAt(d);
+            if      (c < x.c) x = x.left;
+            else if (c > x.c) x = x.right;
+            else {
+                if (x.val != null) values[k++] = x.val;
+                d--;
+                x = x.mid;
+            }
+        }
+        for (int i = 0, j = k - 1; i < j; i++, j--) {
+            Value v = values[i];
+            values[i] = values[j];
+            values[j] = v;
+        }
+        return k;
+    }
+
+    /**
+     * Returns all keys in the symbol table as an <tt>Iterable</tt>,
+     * ordered by their reversed strings.
+     * @return all keys in the symbol table
+     */
+    public Iterable<String> keys() {
+        Queue<String> queue = new Queue<String>();
+        collect(root, new StringBuilder(), queue);
+        return queue;
+    }
+
+    // all keys in subtrie rooted at x with given reversed suffix
+    private void collect(Node<Value> x, StringBuilder suffix, Queue<String> queue) {
+        if (x == null) return;
+        collect(x.left, suffix, queue);
+        suffix.append(x.c);
+        if (x.val != null) queue.enqueue(new StringBuilder(suffix).reverse().toString());
+        collect(x.mid, suffix, queue);
+        suffix.deleteCharAt(suffix.length() - 1);
+        collect(x.right, suffix, queue);
+    }
+
+}
@@ -62,7 +62,7 @@ import in_out.StdOut;
  *  For additional documentation, see <a href="http://algs4.cs.princeton.edu/52trie">Section 5.2</a> of
  *  <i>Algorithms, 4th Edition</i> by Robert Sedgewick and Kevin Wayne.
  */
-public class TST<Value> {
+public class TST<Value> implements StringST<Value> {
     private int N;              // size
     private Node<Value> root;   // root of TST
 
@@ -133,7 +133,11 @@ public class TST<Value> {
      * @throws NullPointerException if <tt>key</tt> is <tt>null</tt>
      */
     public void put(String key, Value val) {
-        if (!contains(key)) N++;
+        if (val == null) {
+            if (contains(key)) N--;
+        } else if (!contains(key)) {
+            N++;
+        }
         root = put(root, key, val, 0);
     }
 
@@ -0,0 +1,138 @@
+package features;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The <tt>ModelFile</tt> class saves a trained model - tag n-gram collector
+ * and tag dictionary with their suffix indices and smoothing factors -
+ * into a compact binary file and loads it back, so that scoring does not
+ * need to retrain or re-smooth. Compiled n-gram scores are not stored:
+ * they are compiled again on load.
+ *
+ * The format is compact on disk only: loading reads the file once and
+ * rebuilds the tries and tables on the heap, so load time and memory still
+ * grow with the model and pages are not shared between processes.
+ *
+ * Layout: magic, version, collector section, dictionary section.
+ * Numbers are big-endian, strings are UTF-8 bytes prefixed with their length.
+ *
+ * @author Valeriya Slovikovskaya vslovik@gmail.com
+ */
+public class ModelFile {
+
+    protected static final int MAGIC = 0x4c54544d; // "LTTM"
+    protected static final int VERSION = 5;
+
+    /**
+     * Saves trained model
+     *
+     * @param file Model file
+     * @param tnc Tag n-gram collector
+     * @param td Tag dictionary
+     * @throws IOException
+     */
+    public static void save(String file, NGramCollector tnc, TagDictionary td) throws IOException
+    {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            tnc.write(out);
+            td.write(out);
+        }
+    }
+
+    /**
+     * Loads trained model into empty collector and dictionary,
+     * reading the file once through a memory map
+     *
+     * @param file Model file
+     * @param tnc Tag n-gram collector
+     * @param td Tag dictionary
+     * @throws IOException
+     */
+    public static void load(String file, NGramCollector tnc, TagDictionary td) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("Model file is too large: " + file);
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC) throw new IOException("Not a model file: " + file);
+            int version = in.getInt();
+            if (version != VERSION) throw new IOException("Unsupported model version: " + version);
+            tnc.read(in);
+            td.read(in);
+        }
+    }
+
+    /**
+     * Writes string
+     *
+     * @param out Output
+     * @param s String
+     * @throws IOException
+     */
+    protected static void writeString(DataOutputStream out, String s) throws IOException
+    {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads string
+     *
+     * @param in Input
+     * @return string
+     */
+    protected static String readString(ByteBuffer in)
+    {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Orders sorted keys so that inserting them one by one
+     * builds a balanced trie: middle key first, then both halves
+     *
+     * @param keys Sorted keys
+     * @return keys in insertion order
+     */
+    protected static String[] balanced(String[] keys)
+    {
+        String[] order = new String[keys.length];
+        balanced(keys, 0, keys.length, order, 0);
+
+        return order;
+    }
+
+    /**
+     * Orders keys lo..hi-1 middle first
+     *
+     * @param keys Sorted keys
+     * @param lo Range start
+     * @param hi Range end
+     * @param order Insertion order
+     * @param k Next position in insertion order
+     * @return next position in insertion order
+     */
+    private static int balanced(String[] keys, int lo, int hi, String[] order, int k)
+    {
+        if (lo >= hi) return k;
+        int mid = (lo + hi) >>> 1;
+        order[k++] = keys[mid];
+        k = balanced(keys, lo, mid, order, k);
+
+        return balanced(keys, mid + 1, hi, order, k);
+    }
+
+}
@@ -1,121 +1,618 @@
 package features;
 
+import algorithms.LongIntHashST;
 import algorithms.ST;
 import algorithms.Queue;
+import algorithms.StringST;
+import algorithms.SuffixTST;
 import algorithms.TST;
-import utils.Utils;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * The <tt>NGramCollector</tt> class
  *
+ * Tokens are interned to integer ids. Uni-gram counts are kept in an
+ * array indexed by id, bi- and trigram counts in a primitive hash table
+ * keyed by the ids packed into one <tt>long</tt>: 21 bits per position,
+ * each slot holding id + 1 so that 0 marks an unused position.
+ * A packed key plays the role of a node of the former n-gram tree.
+ *
  * @author Valeriya Slovikovskaya vslovik@gmail.com
  */
 public class NGramCollector {
 
     public int N = 3;
-    protected TST<Node> tokenIndex;
-    protected ST<Integer, String> tokenIndexR;
+    protected Index tokenIndex;
     protected ST<Integer, Integer> phraseLengths;
+    protected int[] phraseIds = new int[64];  // token ids of the phrase being added
 
-    protected TST<Node> suffixIndex;
-    protected ST<Integer, String> suffixIndexR;
+    protected Index suffixIndex;
+    protected SuffixTST<Integer> suffixTrie; // suffix ids by reversed suffix, shared with suffixIndex
     protected int suffixThreshold = 5;
     protected int maxSuffixLength = 4;
 
     protected double[] lambda = new double[N];
+    protected long[] lambdaCounts = new long[N]; // deleted interpolation votes behind lambdas
+
+    protected boolean online;      // keep lambdas up to date on addPhrase
+    protected LongIntHashST votes; // leaf n-gram -> count << 2 | lambda index + 1, in online mode
+    protected GramLists leaves;    // leaf n-grams whose vote depends on the count of a token, in online mode
+    protected boolean[] revoted = new boolean[0]; // tokens whose leaves are re-voted, reused from phrase to phrase
+
+    protected static final long MAX_COMPILED = 1L << 24;
+    protected static final int VOTE_CHUNK = 1 << 14;
+    protected double[] trigramScores; // compiled P(t3 | t1, t2), indexed by (t1 * size + t2) * size + t3
+    protected double[] bigramScores;  // compiled P(t2 | t1), indexed by t1 * size + t2
+
+    protected static final long NONE = -1L;
+    protected static final int BITS = 21;
+    protected static final long MASK = (1L << BITS) - 1;
+
+    /**
+     * Interned keys with their n-gram counts
+     */
+    protected static class Index
+    {
+        protected StringST<Integer> ids;
+        protected String[] keys = new String[16];
+        protected int[] freq = new int[16];
+        protected int size;
+        protected LongIntHashST grams = new LongIntHashST();  // packed bi- and trigram counts
+        protected LongIntHashST fanout = new LongIntHashST(); // number of distinct trigrams per bigram
+
+        /**
+         * Index constructor
+         *
+         * @param ids Symbol table to intern keys with
+         */
+        protected Index(StringST<Integer> ids)
+        {
+            this.ids = ids;
+        }
+
+        /**
+         * Gets id by key
+         *
+         * @param key Key
+         * @return id or -1 for unknown key
+         */
+        protected int id(String key)
+        {
+            Integer id = ids.get(key);
+            return id == null ? -1 : id;
+        }
+
+        /**
+         * Interns key and counts its occurrence
+         *
+         * @param key Key
+         * @return id
+         */
+        protected int add(String key)
+        {
+            return add(key, 1);
+        }
+
+        /**
+         * Interns key and adds to its count
+         *
+         * @param key Key
+         * @param count Number of occurrences
+         * @return id
+         */
+        protected int add(String key, int count)
+        {
+            Integer id = ids.get(key);
+            if (id != null) {
+                freq[id] += count;
+                return id;
+            }
+            if (size == MASK - 1) throw new IllegalStateException("Too many distinct keys: " + size);
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, 2 * size);
+                freq = Arrays.copyOf(freq, 2 * size);
+            }
+            keys[size] = key;
+            freq[size] = count;
+            ids.put(key, size);
+
+            return size++;
+        }
+
+        /**
+         * Gets count of packed n-gram
+         *
+         * @param gram Packed n-gram
+         * @return count
+         */
+        protected int count(long gram)
+        {
+            return depth(gram) == 1 ? freq[last(gram)] : grams.get(gram);
+        }
+
+        /**
+         * Checks packed n-gram presence
+         *
+         * @param gram Packed n-gram
+         * @return true if n-gram was collected
+         */
+        protected boolean contains(long gram)
+        {
+            if (gram == NONE) return false;
+            return depth(gram) == 1 || grams.contains(gram);
+        }
 
-    class Node
+        /**
+         * Counts bi- or trigram occurrence
+         *
+         * @param gram Packed n-gram
+         * @return new count
+         */
+        protected int increment(long gram)
+        {
+            return increment(gram, 1);
+        }
+
+        /**
+         * Adds to bi- or trigram count
+         *
+         * @param gram Packed n-gram
+         * @param count Number of occurrences
+         * @return new count
+         */
+        protected int increment(long gram, int count)
+        {
+            int freq = grams.increment(gram, count);
+            if (freq == count && depth(gram) == 3) {
+                fanout.increment(gram & ~MASK, 1);
+            }
+
+            return freq;
+        }
+
+        /**
+         * Adds counts of another index.
+         * Keys new to this index are interned in the order of their ids in that index.
+         *
+         * @param that Index to merge
+         */
+        protected void merge(Index that)
+        {
+            int[] map = new int[that.size];
+            for (int id = 0; id < that.size; id++) {
+                map[id] = add(that.keys[id], that.freq[id]);
+            }
+            for (long gram : that.grams.keys()) {
+                increment(remap(gram, map), that.grams.get(gram));
+            }
+        }
+
+        /**
+         * Writes keys and counts
+         *
+         * @param out Output
+         * @throws IOException
+         */
+        protected void write(DataOutputStream out) throws IOException
+        {
+            out.writeInt(size);
+            for (int id = 0; id < size; id++) {
+                ModelFile.writeString(out, keys[id]);
+                out.writeInt(freq[id]);
+            }
+            out.writeInt(grams.size());
+            for (long gram : grams.keys()) {
+                out.writeLong(gram);
+                out.writeInt(grams.get(gram));
+            }
+        }
+
+        /**
+         * Reads keys and counts into empty index
+         *
+         * @param in Input
+         */
+        protected void read(ByteBuffer in)
+        {
+            int n = in.getInt();
+            for (int id = 0; id < n; id++) {
+                add(ModelFile.readString(in), in.getInt());
+            }
+            n = in.getInt();
+            for (int i = 0; i < n; i++) {
+                long gram = in.getLong();
+                increment(gram, in.getInt());
+            }
+        }
+
+        /**
+         * Size
+         *
+         * @return number of distinct keys
+         */
+        protected int size()
+        {
+            return size;
+        }
+    }
+
+    /**
+     * Lists of packed n-grams by token id
+     */
+    protected static class GramLists
     {
-        protected int freq;
-        protected int index;
-        protected ST<Integer, Node> neighbors = new ST<>();
+        protected long[][] grams = new long[16][];
+        protected int[] sizes = new int[16];
+
+        /**
+         * Adds n-gram to the list of token
+         *
+         * @param id Token id
+         * @param gram Packed n-gram
+         */
+        protected void add(int id, long gram)
+        {
+            if (id >= grams.length) {
+                grams = Arrays.copyOf(grams, Math.max(2 * grams.length, id + 1));
+                sizes = Arrays.copyOf(sizes, grams.length);
+            }
+            if (grams[id] == null) grams[id] = new long[4];
+            if (sizes[id] == grams[id].length) grams[id] = Arrays.copyOf(grams[id], 2 * sizes[id]);
+            grams[id][sizes[id]++] = gram;
+        }
+
+        /**
+         * Gets number of n-grams in the list of token
+         *
+         * @param id Token id
+         * @return list size
+         */
+        protected int size(int id)
+        {
+            return id < sizes.length ? sizes[id] : 0;
+        }
+
+        /**
+         * Gets n-gram from the list of token
+         *
+         * @param id Token id
+         * @param i Position in the list
+         * @return packed n-gram
+         */
+        protected long get(int id, int i)
+        {
+            return grams[id][i];
+        }
     }
 
     /**
      * N-gram collector constructor
      */
     public NGramCollector() {
-        tokenIndex = new TST<>();
-        tokenIndexR = new ST<>();
-        suffixIndex = new TST<>();
-        suffixIndexR = new ST<>();
+        tokenIndex = new Index(new TST<Integer>());
+        suffixTrie = new SuffixTST<>();
+        suffixIndex = new Index(suffixTrie);
         phraseLengths = new ST<>();
         for(int i = 0; i < N; i++) {
             lambda[i] = 0.0;
         }
     }
 
+    /**
+     * Packs uni-gram
+     *
+     * @param id Token id
+     * @return packed n-gram
+     */
+    protected static long gram(int id)
+    {
+        return (long) (id + 1) << (2 * BITS);
+    }
+
+    /**
+     * Extends packed n-gram with next token
+     *
+     * @param gram Packed n-gram
+     * @param id Next token id
+     * @return packed n-gram one token longer, NONE if gram is a trigram already
+     */
+    protected static long extend(long gram, int id)
+    {
+        if (gram == NONE || id < 0 || (gram & MASK) != 0) return NONE;
+        if (((gram >>> BITS) & MASK) != 0) return gram | (id + 1);
+
+        return gram | ((long) (id + 1) << BITS);
+    }
+
+    /**
+     * Replaces token ids of packed n-gram
+     *
+     * @param gram Packed n-gram
+     * @param map New id by old id
+     * @return packed n-gram
+     */
+    protected static long remap(long gram, int[] map)
+    {
+        long node = gram(map[first(gram)]);
+        long id = (gram >>> BITS) & MASK;
+        if (id != 0) node = extend(node, map[(int) id - 1]);
+        id = gram & MASK;
+        if (id != 0) node = extend(node, map[(int) id - 1]);
+
+        return node;
+    }
+
+    /**
+     * Gets last token id of packed n-gram
+     *
+     * @param gram Packed n-gram
+     * @return token id
+     */
+    protected static int last(long gram)
+    {
+        if ((gram & MASK) != 0) return (int) (gram & MASK) - 1;
+        if (((gram >>> BITS) & MASK) != 0) return (int) ((gram >>> BITS) & MASK) - 1;
+
+        return (int) (gram >>> (2 * BITS)) - 1;
+    }
+
+    /**
+     * Gets packed n-gram length
+     *
+     * @param gram Packed n-gram
+     * @return 1, 2 or 3
+     */
+    protected static int depth(long gram)
+    {
+        if ((gram & MASK) != 0) return 3;
+        if (((gram >>> BITS) & MASK) != 0) return 2;
+
+        return 1;
+    }
+
     /**
      * Smooth trigram counts
      */
     public void smoothTrigramCounts() {
-        for (String token : tokenIndex.keys()) {
-            Node node = tokenIndex.get(token);
-            if (N == 3) { // Implemented only for N = 3
-                smoothingLambda(node, null, node);
+        smoothTrigramCounts(null);
+    }
+
+    /**
+     * Smooth trigram counts, counting lambda votes in parallel
+     *
+     * @param pool Pool to count votes in, null to count them in the calling thread
+     */
+    public void smoothTrigramCounts(ForkJoinPool pool) {
+        dropCompiled();
+        Arrays.fill(lambdaCounts, 0);
+        if (N == 3) { // Implemented only for N = 3
+            long[] grams = tokenIndex.grams.keys();
+            long[] votes = pool == null ? votes(grams, 0, grams.length) : pool.invoke(new VoteTask(grams, 0, grams.length));
+            System.arraycopy(votes, 0, lambdaCounts, 0, N);
+        }
+
+        normalizeLambdas();
+    }
+
+    /**
+     * Counts lambda votes of n-grams lo..hi-1, splitting the range in halves
+     * and summing the per-half counts, so that votes are counted in parallel
+     */
+    protected class VoteTask extends RecursiveTask<long[]>
+    {
+        private static final long serialVersionUID = 1L;
+
+        protected long[] grams;
+        protected int lo, hi;
+
+        protected VoteTask(long[] grams, int lo, int hi)
+        {
+            this.grams = grams;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected long[] compute()
+        {
+            if (hi - lo <= VOTE_CHUNK) return votes(grams, lo, hi);
+
+            int mid = (lo + hi) >>> 1;
+            VoteTask left = new VoteTask(grams, lo, mid), right = new VoteTask(grams, mid, hi);
+            invokeAll(left, right);
+            long[] votes = left.join(), r = right.join();
+            for (int i = 0; i < N; i++) {
+                votes[i] += r[i];
             }
+
+            return votes;
+        }
+    }
+
+    /**
+     * Counts lambda votes of n-grams lo..hi-1
+     *
+     * @param grams Packed n-grams
+     * @param lo First n-gram
+     * @param hi Last n-gram plus one
+     * @return counts by lambda
+     */
+    protected long[] votes(long[] grams, int lo, int hi)
+    {
+        long[] votes = new long[N];
+        int vote;
+        for (int i = lo; i < hi; i++) {
+            vote = smoothingLambda(grams[i]);
+            if (vote >= 0) votes[vote] += tokenIndex.count(grams[i]);
+        }
+
+        return votes;
+    }
+
+    /**
+     * Switches collector to online smoothing: lambdas are recomputed once
+     * and then kept up to date by addPhrase, which re-votes only the leaf
+     * n-grams that depend on the counts of the added tokens.
+     * A token never seen before changes every uni-gram ratio and makes
+     * addPhrase re-vote all leaves.
+     */
+    public void enableOnlineUpdates()
+    {
+        online = true;
+        votes = new LongIntHashST(tokenIndex.grams.size());
+        leaves = new GramLists();
+        Arrays.fill(lambdaCounts, 0);
+        for (long gram : tokenIndex.grams.keys()) {
+            addLeaf(gram);
+            revote(gram);
         }
 
         normalizeLambdas();
     }
 
     /**
-     * Smoothes lambda
+     * Registers n-gram in the leaf lists of the tokens its vote depends on:
+     * middle and last token of a trigram, first and last token of a bigram
      *
-     * @param first First node
-     * @param prev Second node
-     * @param node Last node
+     * @param gram Packed n-gram
      */
-    protected void smoothingLambda(Node first, Node prev, Node node)
+    protected void addLeaf(long gram)
     {
-        Node n;
-        if (node.neighbors.size() == 0 && node.freq > 0 && prev != null) {
+        int a = depth(gram) == 3 ? (int) ((gram >>> BITS) & MASK) - 1 : first(gram), b = last(gram);
+        leaves.add(a, gram);
+        if (b != a) leaves.add(b, gram);
+    }
 
-            double uni = (double) (tokenIndex.get(tokenIndexR.get(node.index)).freq - 1) / (double) (tokenIndex.size() - 1);
-            double bi  = (double) (prev.freq - 1) / (double) (tokenIndex.get(tokenIndexR.get(prev.index)).freq - 1);
-            double tri = 0.0;
-            for(int index: first.neighbors.keys()) {
-                if (prev.index == index) {
-                    tri = (double) (node.freq - 1) / (double) (first.neighbors.get(index).freq - 1);
-                }
-            }
+    /**
+     * Replaces the vote of n-gram by its vote for the current counts
+     *
+     * @param gram Packed n-gram
+     * @throws IllegalStateException if the n-gram count is too large to keep with its vote
+     */
+    protected void revote(long gram)
+    {
+        int old = votes.get(gram);
+        if (old != 0) lambdaCounts[(old & 3) - 1] -= old >>> 2;
+
+        int vote = smoothingLambda(gram), freq = tokenIndex.count(gram);
+        if (freq > Integer.MAX_VALUE >>> 2)
+            throw new IllegalStateException("N-gram count too large for online updates: " + freq);
+        if (vote >= 0) lambdaCounts[vote] += freq;
+        votes.put(gram, vote < 0 ? 0 : freq << 2 | (vote + 1));
+    }
 
-            if (uni > bi && uni > tri) {
-                lambda[0] += node.freq;
-            } else if (bi > uni && bi > tri) {
-                lambda[1] += node.freq;
-            } else if (tri > uni && tri > bi) {
-                lambda[2] += node.freq;
+    /**
+     * Re-votes leaves after a phrase was added in online mode
+     *
+     * @param ids Ids of the phrase tokens
+     * @param n Number of tokens
+     * @param grown Whether the phrase brought new tokens
+     */
+    protected void updateLambdas(int[] ids, int n, boolean grown)
+    {
+        if (grown) {
+            for (long gram : tokenIndex.grams.keys()) {
+                revote(gram);
             }
-
         } else {
-            for(int index: node.neighbors.keys()) {
-                n = node.neighbors.get(index);
-                smoothingLambda(first, node, n);
+            if (revoted.length < tokenIndex.size()) revoted = new boolean[Math.max(tokenIndex.size(), 2 * revoted.length)];
+            for (int k = 0; k < n; k++) {
+                int id = ids[k];
+                if (revoted[id]) continue;
+                revoted[id] = true;
+                for (int i = 0; i < leaves.size(id); i++) {
+                    revote(leaves.get(id, i));
+                }
+            }
+            for (int k = 0; k < n; k++) {
+                revoted[ids[k]] = false;
             }
         }
+
+        normalizeLambdas();
+    }
+
+    /**
+     * Gets vote of n-gram
+     *
+     * @param gram Packed n-gram
+     * @return lambda index, -1 if n-gram is not a leaf or the vote is a tie
+     */
+    protected int smoothingLambda(long gram)
+    {
+        if (depth(gram) == 3) return smoothingLambda(gram(first(gram)), gram & ~MASK, gram);
+        if (!tokenIndex.fanout.contains(gram)) return smoothingLambda(gram(first(gram)), gram(first(gram)), gram);
+
+        return -1;
+    }
+
+    /**
+     * Gets first token id of packed n-gram
+     *
+     * @param gram Packed n-gram
+     * @return token id
+     */
+    protected static int first(long gram)
+    {
+        return (int) (gram >>> (2 * BITS)) - 1;
+    }
+
+    /**
+     * Gets vote of a leaf n-gram: a trigram or a bigram
+     * that is not continued by any trigram
+     *
+     * @param first First uni-gram
+     * @param prev Prefix of the leaf
+     * @param node Leaf n-gram
+     * @return lambda index, -1 for a tie
+     */
+    protected int smoothingLambda(long first, long prev, long node)
+    {
+        int freq = tokenIndex.count(node);
+
+        double uni = (double) (tokenIndex.freq[last(node)] - 1) / (double) (tokenIndex.size() - 1);
+        double bi  = (double) (tokenIndex.count(prev) - 1) / (double) (tokenIndex.freq[last(prev)] - 1);
+        double tri = 0.0;
+        long mid = extend(first, last(prev));
+        if (tokenIndex.grams.contains(mid)) {
+            tri = (double) (freq - 1) / (double) (tokenIndex.grams.get(mid) - 1);
+        }
+
+        if (uni > bi && uni > tri) {
+            return 0;
+        } else if (bi > uni && bi > tri) {
+            return 1;
+        } else if (tri > uni && tri > bi) {
+            return 2;
+        }
+
+        return -1;
     }
 
     /**
      * Gets smoothed trigram score
      *
      * @param index Index
-     * @param indexR Reverse index
-     * @param first First node
-     * @param prev Prev node
-     * @param node Last node
+     * @param first First uni-gram
+     * @param prev Prev n-gram
+     * @param node Last n-gram
      * @return score
      */
-    protected double getSmoothedTrigramScore(TST<Node> index, ST<Integer, String> indexR, Node first, Node prev, Node node) {
-        double uni = (double) index.get(indexR.get(node.index)).freq / (double) index.size();
-        double bi  = (double) prev.freq / (double) index.get(indexR.get(prev.index)).freq;
+    protected double getSmoothedTrigramScore(Index index, long first, long prev, long node) {
+        double uni = (double) index.freq[last(node)] / (double) index.size();
+        double bi  = (double) index.count(prev) / (double) index.freq[last(prev)];
 
         double tri = 0.0;
-            for (int i : first.neighbors.keys()) {
-                if (prev.index == i) {
-                    tri = (double) node.freq / (double) first.neighbors.get(i).freq;
-                }
-            }
+        long mid = extend(first, last(prev));
+        if (index.grams.contains(mid)) {
+            tri = (double) index.count(node) / (double) index.grams.get(mid);
+        }
 
         return lambda[0]*uni + lambda[1]*bi + lambda[2]*tri;
     }
@@ -124,15 +621,13 @@ public class NGramCollector {
      * Gets smoothed trigram score
      *
      * @param index Index
-     * @param indexR Reverse index
-     * @param prev Prev node
-     * @param token Last trigram token
+     * @param prev Prev n-gram
+     * @param id Last trigram token id, -1 for unknown token
      * @return score
      */
-    protected double getSmoothedTrigramScore(TST<Node> index, ST<Integer, String> indexR, Node prev, String token) {
-        Node n = index.get(token);
-        double uni = (n == null ? 0.0 : n.freq) / (double) index.size();
-        double bi  = (double) prev.freq / (double) index.get(indexR.get(prev.index)).freq;
+    protected double getSmoothedTrigramScore(Index index, long prev, int id) {
+        double uni = (id < 0 ? 0.0 : index.freq[id]) / (double) index.size();
+        double bi  = (double) index.count(prev) / (double) index.freq[last(prev)];
 
         return lambda[0]*uni + lambda[1]*bi;
     }
@@ -142,13 +637,11 @@ public class NGramCollector {
      */
     protected void normalizeLambdas() {
         double sum = 0.0;
-        for (double l: lambda) {
+        for (long l: lambdaCounts) {
             sum += l;
         }
-        if (sum > 0) {
-            for (int i = 0; i < N; i++) {
-                lambda[i] = lambda[i] / sum;
-            }
+        for (int i = 0; i < N; i++) {
+            lambda[i] = sum > 0 ? lambdaCounts[i] / sum : 0.0;
         }
     }
 
@@ -157,79 +650,182 @@ public class NGramCollector {
      */
     public void buildSuffixIndex()
     {
-        Queue<String> q;
-        for (String token: tokenIndex.keys()) {
-            Node node = tokenIndex.get(token);
-            if (node.freq < suffixThreshold) {
-                q = new Queue<>();
-                q.enqueue(token);
-                addSuffixGrams(q, node);
+        dropCompiled();
+        long[] grams = tokenIndex.grams.sortedKeys();
+        SuffixPath path = new SuffixPath();
+        for (String token: tokenIndex.ids.keys()) {
+            int id = tokenIndex.id(token);
+            if (tokenIndex.freq[id] < suffixThreshold) {
+                path.depth = 0;
+                path.push(id);
+                addSuffixGrams(path, grams, gram(id));
             }
         }
     }
 
     /**
-     * Adds suffix n-grams
+     * Reusable buffers of suffix n-gram enumeration.
+     * Suffixes are not cut out of the path tokens: a suffix is given by
+     * its length and ends at a fixed offset of the token.
      */
-    protected void addSuffixGrams(Queue<String> q, Node node) {
-        Node n;
-        if (node.neighbors.size() == 0) {
-            addSuffixGrams(q, new Queue<>());
-        } else {
-            for(int index: node.neighbors.keys()) {
-                n = node.neighbors.get(index);
-                q.enqueue(tokenIndexR.get(index));
-                addSuffixGrams(q, n);
+    protected class SuffixPath
+    {
+        protected int depth;                    // number of tokens on the path
+        protected int[] tokens = new int[16];   // token ids
+        protected int[] lengths = new int[16];  // longest suffix length by position
+        protected int[] choice = new int[16];   // current suffix length by position
+        protected int[] suffixes = new int[16]; // current suffix ids by position
+        protected int[][] ids = new int[16][];  // suffix id by position and length, -1 if not resolved yet
+
+        /**
+         * Appends token to the path
+         *
+         * @param id Token id
+         */
+        protected void push(int id)
+        {
+            if (depth == tokens.length) {
+                tokens = Arrays.copyOf(tokens, 2 * depth);
+                lengths = Arrays.copyOf(lengths, 2 * depth);
+                choice = Arrays.copyOf(choice, 2 * depth);
+                suffixes = Arrays.copyOf(suffixes, 2 * depth);
+                ids = Arrays.copyOf(ids, 2 * depth);
             }
+            if (ids[depth] == null) ids[depth] = new int[maxSuffixLength + 1];
+            Arrays.fill(ids[depth], -1);
+
+            int length = tokenIndex.keys[id].length();
+            tokens[depth] = id;
+            lengths[depth] = length > maxSuffixLength ? maxSuffixLength - 1 : length;
+            depth++;
+        }
+
+        /**
+         * Counts suffix of path token, interning it on first use
+         *
+         * @param i Position
+         * @param length Suffix length
+         * @return suffix id
+         */
+        protected int addSuffix(int i, int length)
+        {
+            int id = ids[i][length];
+            if (id >= 0) {
+                suffixIndex.freq[id] += 1;
+                return id;
+            }
+
+            String token = tokenIndex.keys[tokens[i]];
+            int end = suffixEnd(token);
+            Integer known = suffixTrie.get(token, end - length, end);
+            if (known != null) {
+                id = known;
+                suffixIndex.freq[id] += 1;
+            } else {
+                id = addNode(suffixIndex, token.substring(end - length, end));
+            }
+            ids[i][length] = id;
+
+            return id;
         }
     }
 
     /**
      * Adds suffix n-grams
      *
-     * @param t Tokens
-     * @param s Suffix
+     * @param path Token path
+     * @param grams Sorted packed n-grams
+     * @param node Packed n-gram
      */
-    protected void addSuffixGrams(Queue<String> t, Queue<String> s) {
-        if (t.size() == 0) {
+    protected void addSuffixGrams(SuffixPath path, long[] grams, long node) {
+        int from = children(grams, node), to = from;
+        while (to < grams.length && isChild(node, grams[to])) {
+            to++;
+        }
 
-            Queue<String> copy = Utils.copy(s);
-            for (String token: copy) {
-                addSuffix(token);
-            }
-            while(copy.size() > 0) {
-                addSuffixGram(copy);
-                copy.dequeue();
+        if (from == to) {
+            addSuffixGrams(path);
+        } else {
+            for (int i = from; i < to; i++) {
+                if (depth(grams[i]) != depth(node) + 1) continue;
+                path.push(last(grams[i]));
+                addSuffixGrams(path, grams, grams[i]);
             }
+        }
+    }
+
+    /**
+     * Finds position of the first descendant of n-gram in sorted n-grams
+     *
+     * @param grams Sorted packed n-grams
+     * @param node Packed n-gram
+     * @return position
+     */
+    protected int children(long[] grams, long node)
+    {
+        int i = Arrays.binarySearch(grams, node + 1);
 
-            return;
+        return i < 0 ? -i - 1 : i;
+    }
+
+    /**
+     * Checks that gram continues node
+     *
+     * @param node Packed n-gram
+     * @param gram Packed n-gram
+     * @return true if node is a proper prefix of gram
+     */
+    protected boolean isChild(long node, long gram)
+    {
+        int shift = BITS * (3 - depth(node));
+
+        return gram != node && (gram >>> shift) == (node >>> shift);
+    }
+
+    /**
+     * Adds suffix n-grams for every combination of suffix lengths
+     * of the path tokens, longest suffixes first, the last token varying fastest
+     *
+     * @param path Token path
+     */
+    protected void addSuffixGrams(SuffixPath path) {
+        int n = path.depth, i;
+        for (i = 0; i < n; i++) {
+            if (path.lengths[i] == 0) return;
+            path.choice[i] = path.lengths[i];
         }
 
-        Queue<String> tCopy = Utils.copy(t), sCopy;
-        String suffix = getSuffix(tCopy.dequeue());
-        while (suffix.length() > 0) {
-            sCopy = Utils.copy(s);
-            sCopy.enqueue(suffix);
-            addSuffixGrams(tCopy, sCopy);
-            suffix = Utils.cutSuffix(suffix);
+        while (true) {
+            for (i = 0; i < n; i++) {
+                path.suffixes[i] = path.addSuffix(i, path.choice[i]);
+            }
+            for (i = 0; i < n; i++) {
+                addSuffixGram(path.suffixes, i, Math.min(i + N, n));
+            }
+
+            i = n - 1;
+            while (i >= 0 && path.choice[i] == 1) {
+                path.choice[i] = path.lengths[i];
+                i--;
+            }
+            if (i < 0) return;
+            path.choice[i]--;
         }
     }
 
     /**
-     * getSuffix
+     * Gets end of token suffixes: tokens longer than maxSuffixLength
+     * have suffixes of up to maxSuffixLength - 1 characters, ending
+     * before the last character
      *
      * @param token Token
-     * @return Suffix
+     * @return suffix end
      */
-    protected String getSuffix(String token)
+    protected int suffixEnd(String token)
     {
         int length = token.length();
         if (length == 0) throw new IllegalArgumentException("Empty token");
-        if (length > maxSuffixLength) {
-            return token.substring(length - maxSuffixLength, length - 1);
-        } else {
-            return token;
-        }
+        return length > maxSuffixLength ? length - 1 : length;
     }
 
     /**
@@ -239,160 +835,234 @@ public class NGramCollector {
      */
     public void printNGrams(String token)
     {
-        Node node = printUniGram(token);
-        if (node == null) return;
-        printNGrams(token, node.neighbors);
+        long node = printUniGram(token);
+        if (node == NONE) return;
+        printNGrams(token, tokenIndex.grams.sortedKeys(), node);
     }
 
     /**
-     * Adds Node to the collector
+     * Adds token to the collector
      *
-     * @param token Suffix
+     * @param token Token
+     * @return id
      */
-    protected Node addNode(String token)
+    protected int addNode(String token)
     {
-        return addNode(tokenIndex, tokenIndexR, token);
+        return addNode(tokenIndex, token);
     }
 
     /**
-     * Adds suffix to the collector
+     * Add token to the index
      *
-     * @param suffix Suffix
+     * @param index Index
+     * @param token Token
+     * @return id
      */
-    protected Node addSuffix(String suffix)
+    protected int addNode(Index index, String token)
     {
-        return addNode(suffixIndex, suffixIndexR, suffix);
+        if (token.length() == 0) throw new IllegalArgumentException("Empty token.");
+
+        return index.add(token);
     }
 
     /**
-     * Add Node to the collector
+     * Add suffix N-gram to the collector
      *
-     * @param token Token
-     * @return Node
+     * @param suffixes Suffix ids
+     * @param from N-gram start
+     * @param to N-gram end
      */
-    protected Node addNode(TST<Node> index, ST<Integer, String> indexR, String token)
+    protected void addSuffixGram(int[] suffixes, int from, int to)
     {
-        if (token.length() == 0) throw new IllegalArgumentException("Empty token.");
-
-        Node node = index.get(token);
-        if (node == null) {
-            node = new Node();
-            node.index = index.size();
-            node.freq = 1;
-            index.put(token, node);
-            indexR.put(node.index, token);
-        } else {
-            node.freq += 1;
+        long node = gram(suffixes[from]);
+        for (int i = from + 1; i < to; i++) {
+            node = extend(node, suffixes[i]);
+            suffixIndex.increment(node);
         }
-
-        return node;
     }
 
     /**
-     * Add N-gram to the collector
+     * Add Gram of tokens ids[from..to-1] with its prefixes
      *
-     * @param tokens Tokens
+     * @param index Index
+     * @param ids Token ids
+     * @param from N-gram start
+     * @param to N-gram end
      */
-    protected void addFirstGram(Queue<String> tokens)
-    {
-        addGram(tokenIndex, tokens);
+    protected void addGram(Index index, int[] ids, int from, int to) {
+        long node = gram(ids[from]);
+        for (int i = from + 1; i < to; i++) {
+            node = extend(node, ids[i]);
+            if (index.increment(node) == 1 && online && index == tokenIndex) addLeaf(node);
+        }
     }
 
     /**
-     * Add N-gram to the collector
+     * Scores token n-gram
      *
-     * @param tokens Tokens
+     * @param q n-gram queue
+     * @param n n-gram rang
+     * @return score
      */
-    protected void addSuffixGram(Queue<String> tokens)
+    public double scoreGram(Queue<String> q, int n)
     {
-        addGram(suffixIndex, tokens);
+        if (q.size() < n) throw new IllegalArgumentException();
+
+        String[] tokens = new String[q.size()];
+        int[] ids = new int[tokens.length];
+        for (int i = 0; q.size() > 0; i++) {
+            tokens[i] = q.dequeue();
+            ids[i] = tokenIndex.id(tokens[i]);
+        }
+
+        return scoreGram(tokens, ids, n);
     }
 
     /**
-     * Add Gram
+     * Scores token n-gram tokens[from..from+n-1] in place, as
+     * {@link #scoreGram(Queue, int)} does for a queue of these tokens.
+     * N-grams of known tokens are read from the compiled scores without allocation.
      *
-     * @param index Index
      * @param tokens Tokens
+     * @param ids Token ids, -1 for unknown tokens
+     * @param from First token of n-gram
+     * @param n n-gram rang
+     * @return score
      */
-    protected void addGram(TST<Node> index, Queue<String> tokens) {
-        if (tokens.size() == 0) throw new IllegalArgumentException("Empty tokens queue.");
-
-        Node prev = null, node;
-        int i = 0;
-        for (String token: tokens) {
-            node = index.get(token);
-            if (prev != null) {
-                node = addNeighbor(prev, node.index);
-            }
-
-            i++;
-            if (i == N) {
-                break;
-            } else {
-                prev = node;
-            }
+    public double scoreGram(String[] tokens, int[] ids, int from, int n)
+    {
+        if (trigramScores != null) {
+            if (n == 3 && ids[from] >= 0 && ids[from + 1] >= 0 && ids[from + 2] >= 0) return trigramScore(ids[from], ids[from + 1], ids[from + 2]);
+            if (n == 2 && ids[from] >= 0 && ids[from + 1] >= 0) return bigramScore(ids[from], ids[from + 1]);
         }
+
+        return walkGram(Arrays.copyOfRange(tokens, from, from + n), Arrays.copyOfRange(ids, from, from + n), n);
     }
 
     /**
-     * Adds neighbor to node
-     *
-     * @param prev Previous node
-     * @param index Next node index
+     * Scores token n-gram
      *
-     * @return Node
+     * @param tokens n-gram tokens
+     * @param ids Token ids, -1 for unknown tokens
+     * @param n n-gram rang
+     * @return score
      */
-    protected Node addNeighbor(Node prev, int index)
+    protected double scoreGram(String[] tokens, int[] ids, int n)
     {
-        if (prev == null) throw new IllegalArgumentException("Invalid node.");
-        Node neighbor = prev.neighbors.get(index);
-        if (neighbor == null) {
-            neighbor = new Node();
-            neighbor.index = index;
-            neighbor.freq = 1;
-            prev.neighbors.put(neighbor.index, neighbor);
-        } else {
-            neighbor.freq += 1;
+        if (trigramScores != null && ids.length == n) {
+            if (n == 3 && ids[0] >= 0 && ids[1] >= 0 && ids[2] >= 0) return trigramScore(ids[0], ids[1], ids[2]);
+            if (n == 2 && ids[0] >= 0 && ids[1] >= 0) return bigramScore(ids[0], ids[1]);
         }
 
-        return neighbor;
+        return walkGram(tokens, ids, n);
     }
 
     /**
-     * Scores token n-gram
+     * Scores token n-gram walking the collected counts
      *
-     * @param q n-gram queue
+     * @param tokens n-gram tokens
+     * @param ids Token ids, -1 for unknown tokens
      * @param n n-gram rang
      * @return score
      */
-    public double scoreGram(Queue<String> q, int n)
+    protected double walkGram(String[] tokens, int[] ids, int n)
     {
-        if (q.size() < n) throw new IllegalArgumentException();
-
-        Queue<String> qCopy = Utils.copy(q);
-
-        String token;
-        Node prev = null, node = null, first = null;
-        while (q.size() > 0) {
-            token = q.dequeue();
+        long prev = NONE, node = NONE, first = NONE;
+        for (int id : ids) {
             prev = node;
-            if (prev == null) {
-                node = tokenIndex.get(token);
+            if (prev == NONE) {
+                node = id < 0 ? NONE : gram(id);
                 first = node;
             } else {
-                node = takeNext(prev, token);
-                if (node == null) if(n == 3 && first != prev) return getSmoothedTrigramScore(tokenIndex, tokenIndexR, prev, token);
+                node = takeNext(tokenIndex, prev, id);
+                if (node == NONE) if(n == 3 && first != prev) return getSmoothedTrigramScore(tokenIndex, prev, id);
             }
         }
 
-        if (node == null) return scoreSuffixGram(qCopy, n);
+        if (node == NONE) return scoreSuffixGram(tokens, n);
 
-        if (n == 1) return (double) node.freq / tokenIndex.get("START").freq;
+        if (n == 1) return (double) tokenIndex.count(node) / tokenIndex.freq[tokenIndex.id("START")];
 
-        if (prev == null) return n == 3 ? lambda[0] * ((double) node.freq / (double) tokenIndex.size()) : 0.0;
+        if (prev == NONE) return n == 3 ? lambda[0] * ((double) tokenIndex.count(node) / (double) tokenIndex.size()) : 0.0;
+
+        return n == 3 ? getSmoothedTrigramScore(tokenIndex, first, prev, node) : (double) tokenIndex.count(node) / (double) tokenIndex.count(prev);
+
+    }
 
-        return n == 3 ? getSmoothedTrigramScore(tokenIndex, tokenIndexR, first, prev, node) : (double) node.freq / (double) prev.freq;
+    /**
+     * Scores trigram of known tokens
+     *
+     * @param t1 First token id
+     * @param t2 Second token id
+     * @param t3 Third token id
+     * @return score
+     */
+    public double trigramScore(int t1, int t2, int t3)
+    {
+        int v = tokenIndex.size();
+        if (trigramScores != null) return trigramScores[(t1 * v + t2) * v + t3];
 
+        return walkGram(new String[] {tokenIndex.keys[t1], tokenIndex.keys[t2], tokenIndex.keys[t3]}, new int[] {t1, t2, t3}, 3);
+    }
+
+    /**
+     * Scores bigram of known tokens
+     *
+     * @param t1 First token id
+     * @param t2 Second token id
+     * @return score
+     */
+    public double bigramScore(int t1, int t2)
+    {
+        if (bigramScores != null) return bigramScores[t1 * tokenIndex.size() + t2];
+
+        return walkGram(new String[] {tokenIndex.keys[t1], tokenIndex.keys[t2]}, new int[] {t1, t2}, 2);
+    }
+
+    /**
+     * Materializes smoothed bi- and trigram scores of every token combination,
+     * back-off cases included, so that scoring known n-grams is one array read.
+     * To be called once counting, smoothing and suffix indexing are done:
+     * any of them drops the compiled scores again. Compiling is a speed-up only:
+     * beyond MAX_COMPILED trigrams nothing is compiled and scores are walked.
+     */
+    public void compile()
+    {
+        dropCompiled();
+        int v = tokenIndex.size();
+        if ((long) v * v * v > MAX_COMPILED) return;
+
+        double[] tri = new double[v * v * v];
+        double[] bi = new double[v * v];
+        for (int t1 = 0; t1 < v; t1++) {
+            for (int t2 = 0; t2 < v; t2++) {
+                bi[t1 * v + t2] = bigramScore(t1, t2);
+                for (int t3 = 0; t3 < v; t3++) {
+                    tri[(t1 * v + t2) * v + t3] = trigramScore(t1, t2, t3);
+                }
+            }
+        }
+        trigramScores = tri;
+        bigramScores = bi;
+    }
+
+    /**
+     * Checks whether n-gram scores are compiled
+     *
+     * @return true if compiled
+     */
+    public boolean isCompiled()
+    {
+        return trigramScores != null;
+    }
+
+    /**
+     * Drops compiled n-gram scores
+     */
+    protected void dropCompiled()
+    {
+        trigramScores = null;
+        bigramScores = null;
     }
 
     /**
@@ -406,122 +1076,130 @@ public class NGramCollector {
     {
         if (q.size() < n) throw new IllegalArgumentException();
 
-        String token;
-        Node prev = null, node = null, first = null;
-        while (q.size() > 0) {
-            token = q.dequeue();
+        String[] tokens = new String[q.size()];
+        for (int i = 0; q.size() > 0; i++) {
+            tokens[i] = q.dequeue();
+        }
+
+        return scoreSuffixGram(tokens, n);
+    }
+
+    /**
+     * Scores suffix n-gram
+     *
+     * @param tokens n-gram tokens
+     * @param n n-gram rang
+     * @return score
+     */
+    protected double scoreSuffixGram(String[] tokens, int n)
+    {
+        Integer[] suffixes = new Integer[maxSuffixLength];
+        int k;
+        long prev = NONE, node = NONE, first = NONE;
+        for (String token : tokens) {
+            k = suffixIds(token, suffixes);
             prev = node;
-            if (prev == null) {
-                node = suffixNode(token);
+            if (prev == NONE) {
+                node = k == 0 ? NONE : gram(suffixes[0]);
                 first = node;
             } else {
-                node = takeNextSuffixNode(prev, token);
-                if (node == null) {
+                node = takeNextSuffixNode(prev, suffixes, k);
+                if (node == NONE) {
                     if(n == 3 && first != prev) {
-                        return getSmoothedTrigramScore(suffixIndex, suffixIndexR, prev, token);
+                        return getSmoothedTrigramScore(suffixIndex, prev, suffixIndex.id(token));
                     }
                 }
             }
         }
 
-        if (node == null) {
+        if (node == NONE) {
             return 0.0;
         }
 
-        if (n == 1) return (double) node.freq / tokenIndex.get("START").freq;
+        if (n == 1) return (double) suffixIndex.count(node) / tokenIndex.freq[tokenIndex.id("START")];
 
-        if (prev == null) return n == 3 ? lambda[0] * (double) node.freq / (double) tokenIndex.size() : 0.0;
-        return n == 3 ? getSmoothedTrigramScore(suffixIndex, suffixIndexR, first, prev, node) : (double) node.freq / (double) prev.freq;
+        if (prev == NONE) return n == 3 ? lambda[0] * (double) suffixIndex.count(node) / (double) tokenIndex.size() : 0.0;
+        return n == 3 ? getSmoothedTrigramScore(suffixIndex, first, prev, node) : (double) suffixIndex.count(node) / (double) suffixIndex.count(prev);
 
     }
 
     /**
-     * Gets longest suffix node by token
+     * Resolves known suffixes of token to their ids, longest first
      *
      * @param token Token
-     * @return node
+     * @param ids Buffer of at least maxSuffixLength ids
+     * @return number of ids found
      */
-    protected Node suffixNode(String token)
+    protected int suffixIds(String token, Integer[] ids)
     {
-        Node node = null;
-        String suffix = getSuffix(token);
-        while(suffix.length() > 0) {
-            node = suffixIndex.get(suffix);
-            if (node != null) break;
-            suffix = Utils.cutSuffix(suffix);
-        }
+        int end = suffixEnd(token);
 
-        return node;
+        return suffixTrie.suffixValues(token, end, end == token.length() ? end : maxSuffixLength - 1, ids);
     }
 
     /**
-     * Takes next node by token
-     * 
-     * @param prev Previous node
-     * @param token Token
-     * @return Node
+     * Takes next n-gram by token id
+     *
+     * @param index Index
+     * @param prev Previous n-gram
+     * @param id Token id
+     * @return packed n-gram or NONE
      */
-    protected Node takeNext(Node prev, String token)
+    protected long takeNext(Index index, long prev, int id)
     {
-        for (int index: prev.neighbors.keys()) {
-            if (tokenIndexR.get(index).equals(token)) {
-                return prev.neighbors.get(index);
-            }
-        }
-        
-        return null;        
+        long node = extend(prev, id);
+
+        return index.grams.contains(node) ? node : NONE;
     }
 
     /**
-     * Takes next suffix node by token
+     * Takes next suffix n-gram by the longest suffix continuing prev
      *
-     * @param prev Previous node
-     * @param token Token
-     * @return Node
+     * @param prev Previous n-gram
+     * @param suffixes Suffix ids, longest first
+     * @param k Number of suffix ids
+     * @return packed n-gram or NONE
      */
-    protected Node takeNextSuffixNode(Node prev, String token)
+    protected long takeNextSuffixNode(long prev, Integer[] suffixes, int k)
     {
-        String suffix = getSuffix(token);
-        while(suffix.length() > 0) {
-            for (int index : prev.neighbors.keys()) {
-                if (suffixIndexR.get(index).equals(suffix)) {
-                    return prev.neighbors.get(index);
-                }
-            }
-            suffix = Utils.cutSuffix(suffix);
+        long node;
+        for (int i = 0; i < k; i++) {
+            node = takeNext(suffixIndex, prev, suffixes[i]);
+            if (node != NONE) return node;
         }
 
-        return null;
+        return NONE;
     }
 
     /**
      * Prints uni gram
      *
      * @param token Token
-     * @return Node
+     * @return packed uni-gram or NONE
      */
-    protected Node printUniGram(String token)
+    protected long printUniGram(String token)
     {
-        Node node = tokenIndex.get(token);
-        if(node == null) return null;
-        System.out.println(token + " " + node.freq);
+        int id = tokenIndex.id(token);
+        if(id < 0) return NONE;
+        System.out.println(token + " " + tokenIndex.freq[id]);
 
-        return node;
+        return gram(id);
     }
 
     /**
      * Prints n-grams
      *
      * @param history Backward history
-     * @param neighbors Neighbors
+     * @param grams Sorted packed n-grams
+     * @param node Packed n-gram
      */
-    protected void printNGrams(String history, ST<Integer, Node> neighbors)
+    protected void printNGrams(String history, long[] grams, long node)
     {
-        if (neighbors.size() == 0) return;
-        for (int index: neighbors.keys()) {
-            Node node = neighbors.get(index);
-            System.out.println(history + " " + tokenIndexR.get(index) +  " " + node.freq);
-            printNGrams(history + " " + tokenIndexR.get(index), node.neighbors);
+        for (int i = children(grams, node); i < grams.length && isChild(node, grams[i]); i++) {
+            if (depth(grams[i]) != depth(node) + 1) continue;
+            String token = tokenIndex.keys[last(grams[i])];
+            System.out.println(history + " " + token +  " " + tokenIndex.count(grams[i]));
+            printNGrams(history + " " + token, grams, grams[i]);
         }
     }
 
@@ -532,14 +1210,116 @@ public class NGramCollector {
      */
     public void addPhrase(Queue<String> tokens)
     {
-        Queue<String> copy = Utils.copy(tokens);
-        for (String token: copy) {
-            addNode(token);
+        String[] array = new String[tokens.size()];
+        int i = 0;
+        for (String token: tokens) {
+            array[i++] = token;
         }
-         while(copy.size() > 0) {
-            addFirstGram(copy);
-            copy.dequeue();
+        addPhrase(array, array.length);
+    }
+
+    /**
+     * Add phrase tokens[0..n-1] to the collector
+     *
+     * @param tokens Tokens
+     * @param n Number of tokens
+     */
+    public void addPhrase(String[] tokens, int n)
+    {
+        dropCompiled();
+        int size = tokenIndex.size();
+        if (phraseIds.length < n) phraseIds = new int[Math.max(n, 2 * phraseIds.length)];
+        for (int i = 0; i < n; i++) {
+            phraseIds[i] = addNode(tokens[i]);
+        }
+        for (int i = 0; i < n; i++) {
+            addGram(tokenIndex, phraseIds, i, Math.min(i + N, n));
         }
+
+        if (online) updateLambdas(phraseIds, n, tokenIndex.size() > size);
+    }
+
+    /**
+     * Merges counts of another collector into this one.
+     * Tokens new to this collector get ids in the order the other collector
+     * met them, so merging collectors of consecutive input shards in order
+     * gives the same collector as a single pass over the whole input.
+     * Lambdas are not merged: smooth trigram counts after merging.
+     *
+     * @param that Collector to merge
+     */
+    public void merge(NGramCollector that)
+    {
+        dropCompiled();
+        tokenIndex.merge(that.tokenIndex);
+        suffixIndex.merge(that.suffixIndex);
+        if (online) enableOnlineUpdates();
+    }
+
+    /**
+     * Writes counts and lambda votes. Compiled scores are not written, they take
+     * up to MAX_COMPILED doubles and are quicker to compile again on read.
+     *
+     * @param out Output
+     * @throws IOException
+     */
+    protected void write(DataOutputStream out) throws IOException
+    {
+        out.writeInt(N);
+        out.writeInt(suffixThreshold);
+        out.writeInt(maxSuffixLength);
+        for (long l : lambdaCounts) {
+            out.writeLong(l);
+        }
+        tokenIndex.write(out);
+        suffixIndex.write(out);
+
+        out.writeBoolean(isCompiled());
+    }
+
+    /**
+     * Reads counts and lambda votes into empty collector,
+     * compiling scores if they were compiled when written
+     *
+     * @param in Input
+     */
+    protected void read(ByteBuffer in)
+    {
+        N = in.getInt();
+        suffixThreshold = in.getInt();
+        maxSuffixLength = in.getInt();
+        lambda = new double[N];
+        lambdaCounts = new long[N];
+        for (int i = 0; i < N; i++) {
+            lambdaCounts[i] = in.getLong();
+        }
+        normalizeLambdas();
+        tokenIndex.read(in);
+        suffixIndex.read(in);
+
+        if (in.get() != 0) compile();
+    }
+
+    /**
+     * Gets token id
+     *
+     * @param token Token
+     * @return id or -1 for unknown token
+     */
+    public int id(String token)
+    {
+        return tokenIndex.id(token);
+    }
+
+    /**
+     * Gets token by id
+     *
+     * @param id Token id
+     * @return token
+     */
+    public String key(int id)
+    {
+        return tokenIndex.keys[id];
     }
 
     /**
@@ -552,6 +1332,16 @@ public class NGramCollector {
         return tokenIndex.size();
     }
 
+    /**
+     * Gets number of distinct bi- and trigrams
+     *
+     * @return number of n-grams
+     */
+    public int gramCount()
+    {
+        return tokenIndex.grams.size();
+    }
+
     /**
      * Gets token count
      *
@@ -559,12 +1349,12 @@ public class NGramCollector {
      * @return count
      */
     public int count(String token) {
-        Node node = tokenIndex.get(token);
-        if (node == null) {
+        int id = tokenIndex.id(token);
+        if (id < 0) {
             return 0;
         }
 
-        return node.freq;
+        return tokenIndex.freq[id];
     }
 
     /**
@@ -575,14 +1365,14 @@ public class NGramCollector {
     public double suffixSmoothingFactor()
     {
         int sum = 0;
-        for(String token: tokenIndex.keys()) {
-            sum += tokenIndex.get(token).freq;
+        for(String token: tokenIndex.ids.keys()) {
+            sum += tokenIndex.freq[tokenIndex.id(token)];
         }
         double avg = (double) sum / (double) tokenIndex.size();
 
         double teta = 0.0;
-        for(String token: tokenIndex.keys()) {
-            teta += Math.pow(tokenIndex.get(token).freq - avg, 2);
+        for(String token: tokenIndex.ids.keys()) {
+            teta += Math.pow(tokenIndex.freq[tokenIndex.id(token)] - avg, 2);
         }
 
         return teta / (double) tokenIndex.size();
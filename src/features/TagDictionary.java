@@ -1,30 +1,223 @@
 package features;
 
+import algorithms.LRUCache;
 import algorithms.Queue;
 import algorithms.ST;
+import algorithms.StringST;
+import algorithms.SuffixTST;
 import algorithms.TST;
 import utils.Utils;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 /**
  * The <tt>TagDictionary</tt> class represents token - tag dictionary
  *
+ * Tags are interned to short ids. Each token and suffix node keeps its
+ * tag distribution as parallel arrays of tag ids and counts sorted by id.
+ * Emission probabilities P(token|tag) are normalized by tag frequencies
+ * the dictionary counts itself; a reusable {@link Token} handle resolves
+ * a token once for queries with several tags. Longest suffix lookups
+ * of unknown tokens can go through a bounded LRU cache.
+ *
  * @author Valeriya Slovikovskaya vslovik@gmail.com
  */
 public class TagDictionary {
 
+    /**
+     * Sources of an emission probability: the token count, the count of its longest suffix, or none
+     */
+    public static final int KNOWN = 0, SUFFIX = 1, ZERO = 2;
+
     protected TST<Node> tokenIndex;
-    protected TST<Node> suffixIndex;
+    protected SuffixTST<Node> suffixIndex;
     protected int suffixThreshold = 5;
     protected int maxSuffixLength = 4;
+    protected double teta; // suffix smoothing factor the suffix index was built with
+
+    protected TST<Integer> tagIds;              // tag id by tag
+    protected String[] tagNames = new String[16]; // tag by tag id
+    protected int[] tagFreq = new int[16];      // tag frequency by tag id
+    protected int tagCount;
+
+    protected LRUCache<String, Node> suffixCache; // longest suffix node by token, null if disabled
+
+    protected boolean online;                            // keep suffix index up to date on addTaggedPhrase
+    protected ST<Character, ST<String, Node>> rareTokens; // tokens below suffix threshold by last char, in online mode
 
     /**
-     * Node to keep in index
+     * Node to keep in index: frequency and tag distribution
      */
-    class Node
+    static class Node
     {
+        private static final short[] NO_TAGS = new short[0];
+        private static final double[] NO_COUNTS = new double[0];
+
         protected int freq;
+        protected int size;                      // number of tags
+        protected short[] tags = NO_TAGS;        // tag ids, ascending
+        protected double[] counts = NO_COUNTS;   // counts by position of tag id
+
+        /**
+         * Finds tag position
+         *
+         * @param tag Tag id
+         * @return position, or -(insertion point) - 1 if tag is absent
+         */
+        protected int find(int tag)
+        {
+            int i = 0;
+            while (i < size && tags[i] < tag) i++;
+
+            return i < size && tags[i] == tag ? i : -i - 1;
+        }
+
+        /**
+         * Checks tag presence
+         *
+         * @param tag Tag id
+         * @return true if node has tag
+         */
+        protected boolean contains(int tag)
+        {
+            return find(tag) >= 0;
+        }
+
+        /**
+         * Gets tag count
+         *
+         * @param tag Tag id
+         * @return count, 0 for absent tag
+         */
+        protected double get(int tag)
+        {
+            int i = find(tag);
+
+            return i >= 0 ? counts[i] : 0;
+        }
+
+        /**
+         * Sets tag count
+         *
+         * @param tag Tag id
+         * @param count Count
+         */
+        protected void put(int tag, double count)
+        {
+            int i = find(tag);
+            if (i >= 0) {
+                counts[i] = count;
+                return;
+            }
+            i = -i - 1;
+            if (size == tags.length) {
+                tags = Arrays.copyOf(tags, Math.max(2, 2 * size));
+                counts = Arrays.copyOf(counts, tags.length);
+            }
+            System.arraycopy(tags, i, tags, i + 1, size - i);
+            System.arraycopy(counts, i, counts, i + 1, size - i);
+            tags[i] = (short) tag;
+            counts[i] = count;
+            size++;
+        }
+
+        /**
+         * Adds to tag count
+         *
+         * @param tag Tag id
+         * @param count Count to add
+         */
+        protected void add(int tag, double count)
+        {
+            int i = find(tag);
+            if (i >= 0) {
+                counts[i] += count;
+            } else {
+                put(tag, count);
+            }
+        }
+
+        /**
+         * Removes tag
+         *
+         * @param tag Tag id
+         */
+        protected void remove(int tag)
+        {
+            int i = find(tag);
+            if (i < 0) return;
+            System.arraycopy(tags, i + 1, tags, i, size - i - 1);
+            System.arraycopy(counts, i + 1, counts, i, size - i - 1);
+            size--;
+        }
+    }
+
+    private static final Node NO_SUFFIX = new Node(); // cached miss of longest suffix lookup
+
+    /**
+     * Token handle: token and suffix nodes resolved once for emission queries
+     */
+    public class Token
+    {
         protected String token;
-        protected ST<String, Double> tags = new ST<>();
+        protected Node node;           // token node, null for unknown token
+        protected Node suffix;         // longest suffix node, null if none
+        protected boolean suffixFound; // suffix lookup done
+        protected int source;          // source of the last emission probability: KNOWN, SUFFIX or ZERO
+
+        /**
+         * Points handle to token
+         *
+         * @param token Token
+         * @return this handle
+         */
+        public Token set(String token)
+        {
+            this.token = token;
+            node = tokenIndex.get(token);
+            suffix = null;
+            suffixFound = false;
+
+            return this;
+        }
+
+        /**
+         * Is token in the dictionary
+         *
+         * @return true for known token
+         */
+        public boolean isKnown()
+        {
+            return node != null;
+        }
+
+        /**
+         * Gets longest suffix node, looked up on first use
+         *
+         * @return suffix node or null
+         */
+        protected Node suffix()
+        {
+            if (!suffixFound) {
+                suffix = longestSuffix(token);
+                suffixFound = true;
+            }
+
+            return suffix;
+        }
+
+        /**
+         * Gets the source of the last emission probability taken for the token
+         *
+         * @return KNOWN, SUFFIX or ZERO
+         */
+        public int source()
+        {
+            return source;
+        }
     }
 
     /**
@@ -32,13 +225,119 @@ public class TagDictionary {
      */
     public TagDictionary() {
         tokenIndex = new TST<>();
-        suffixIndex = new TST<>();
+        suffixIndex = new SuffixTST<>();
+        tagIds = new TST<>();
+    }
+
+    /**
+     * Gets tag id
+     *
+     * @param tag Tag
+     * @return tag id or -1 for unknown tag
+     */
+    public int tagId(String tag)
+    {
+        Integer id = tagIds.get(tag);
+
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Gets tag by id
+     *
+     * @param id Tag id
+     * @return tag
+     */
+    public String tag(int id)
+    {
+        return tagNames[id];
+    }
+
+    /**
+     * Number of distinct tags
+     *
+     * @return tag count
+     */
+    public int tagCount()
+    {
+        return tagCount;
+    }
+
+    /**
+     * Interns tag
+     *
+     * @param tag Tag
+     * @return tag id
+     */
+    protected int internTag(String tag)
+    {
+        if (tag.length() == 0) throw new IllegalArgumentException("Empty tag.");
+        Integer id = tagIds.get(tag);
+        if (id != null) return id;
+        if (tagCount == Short.MAX_VALUE) throw new IllegalStateException("Too many distinct tags: " + tagCount);
+        if (tagCount == tagNames.length) {
+            tagNames = Arrays.copyOf(tagNames, 2 * tagCount);
+            tagFreq = Arrays.copyOf(tagFreq, 2 * tagCount);
+        }
+        tagNames[tagCount] = tag;
+        tagIds.put(tag, tagCount);
+
+        return tagCount++;
+    }
+
+    /**
+     * Puts a bounded LRU cache in front of longest suffix lookups
+     *
+     * @param capacity Maximal number of cached tokens, 0 to disable the cache
+     */
+    public void enableSuffixCache(int capacity)
+    {
+        suffixCache = capacity > 0 ? new LRUCache<String, Node>(capacity) : null;
+    }
+
+    /**
+     * Gets suffix cache to read its counters
+     *
+     * @return suffix cache, null if disabled
+     */
+    public LRUCache<String, ?> suffixCache()
+    {
+        return suffixCache;
+    }
+
+    /**
+     * Forgets cached suffix lookups after the suffix index changed
+     */
+    protected void clearSuffixCache()
+    {
+        if (suffixCache != null) suffixCache.clear();
+    }
+
+    /**
+     * Gets node of the longest known suffix of token
+     *
+     * @param token Token
+     * @return suffix node or null
+     */
+    protected Node longestSuffix(String token)
+    {
+        if (suffixCache == null) return suffixIndex.longestSuffixOf(token, token.length(), maxSuffixLength);
+
+        Node node = suffixCache.get(token);
+        if (node == null) {
+            node = suffixIndex.longestSuffixOf(token, token.length(), maxSuffixLength);
+            suffixCache.put(token, node == null ? NO_SUFFIX : node);
+            return node;
+        }
+
+        return node == NO_SUFFIX ? null : node;
     }
 
     /**
      * Builds suffix index
      */
     public void buildSuffixIndex() {
+        clearSuffixCache();
         for (String token : tokenIndex.keys()) {
             addSuffixes(token);
         }
@@ -53,6 +352,157 @@ public class TagDictionary {
     {
         buildSuffixIndex();
         smoothSuffixCounts(teta);
+        this.teta = teta;
+    }
+
+    /**
+     * Switches dictionary to online suffix index updates: addTaggedPhrase
+     * keeps the suffix index equal to a rebuild with the same smoothing factor.
+     * Smoothing of a suffix for a tag only involves tokens ending with the
+     * same character, so each update re-smooths just the (last character, tag)
+     * groups the new phrase touched. Smoothing is replayed in token order, so
+     * every rare token ending with a touched character is visited again, once
+     * per phrase: an update costs time proportional to the rare vocabulary of
+     * these characters, not to the phrase. Where most words end in a few
+     * letters, such as Italian vowels, that is most of the rare vocabulary.
+     * The smoothing factor is not re-estimated.
+     */
+    public void enableOnlineUpdates()
+    {
+        online = true;
+        rareTokens = new ST<>();
+        for (String token : tokenIndex.keys()) {
+            Node node = tokenIndex.get(token);
+            if (node.freq < suffixThreshold) rareTokens(token).put(token, node);
+        }
+    }
+
+    /**
+     * Gets rare tokens ending with the same character as token
+     *
+     * @param token Token
+     * @return rare tokens by token
+     */
+    protected ST<String, Node> rareTokens(String token)
+    {
+        char c = token.charAt(token.length() - 1);
+        ST<String, Node> group = rareTokens.get(c);
+        if (group == null) {
+            group = new ST<>();
+            rareTokens.put(c, group);
+        }
+
+        return group;
+    }
+
+    /**
+     * Adds tagged token in online mode, updating suffix counts
+     * of tokens entering or leaving the rare token set
+     *
+     * @param token Token
+     * @param tag Tag id
+     * @param dirty Tags to re-smooth by last character
+     * @param departed Suffixes that lost a rare token
+     */
+    protected void addOnline(String token, int tag, ST<Character, ST<Integer, Boolean>> dirty, Queue<String> departed)
+    {
+        Node node = tokenIndex.get(token);
+        boolean known = node != null && node.contains(tag);
+        addNode(token, tag);
+        node = tokenIndex.get(token);
+
+        char c = token.charAt(token.length() - 1);
+        if (node.freq < suffixThreshold) {
+            if (known) return;
+            rareTokens(token).put(token, node);
+            addSuffixes(token, tag);
+            dirty(dirty, c).put(tag, true);
+        } else if (node.freq == suffixThreshold) {
+            rareTokens(token).delete(token);
+            int end = token.length();
+            for (int i = 0; i < node.size; i++) {
+                int t = node.tags[i];
+                if (t == tag && !known) continue;
+                for (int start = suffixStart(token); start < end; start++) {
+                    suffixIndex.get(token, start, end).freq -= 1;
+                    departed.enqueue(token.substring(start));
+                }
+                dirty(dirty, c).put(t, true);
+            }
+        }
+    }
+
+    /**
+     * Gets tags to re-smooth for last character
+     *
+     * @param dirty Tags to re-smooth by last character
+     * @param c Last character
+     * @return tag ids
+     */
+    protected ST<Integer, Boolean> dirty(ST<Character, ST<Integer, Boolean>> dirty, char c)
+    {
+        ST<Integer, Boolean> tags = dirty.get(c);
+        if (tags == null) {
+            tags = new ST<>();
+            dirty.put(c, tags);
+        }
+
+        return tags;
+    }
+
+    /**
+     * Re-smooths suffix counts of tags over the rare tokens ending with a character:
+     * resets the counts to the unsmoothed ones and replays smoothing in token order.
+     * Tags are smoothed in separate counts, so one pass over the tokens serves them all.
+     *
+     * @param c Last character
+     * @param tags Tag ids
+     * @param departed Suffixes that lost a rare token
+     */
+    protected void resmooth(char c, ST<Integer, Boolean> tags, Queue<String> departed)
+    {
+        ST<String, Node> group = rareTokens.get(c);
+        ST<Integer, ST<String, Integer>> counts = new ST<>();
+        for (int tag : tags.keys()) {
+            counts.put(tag, new ST<String, Integer>());
+        }
+        if (group != null) {
+            for (String token : group.keys()) {
+                Node node = group.get(token);
+                for (int i = 0; i < node.size; i++) {
+                    ST<String, Integer> tagCounts = counts.get((int) node.tags[i]);
+                    if (tagCounts == null) continue;
+                    String s = getSuffix(token);
+                    while (s.length() > 0) {
+                        tagCounts.put(s, tagCounts.contains(s) ? tagCounts.get(s) + 1 : 1);
+                        s = Utils.cutSuffix(s);
+                    }
+                }
+            }
+        }
+
+        for (int tag : tags.keys()) {
+            ST<String, Integer> tagCounts = counts.get(tag);
+            for (String s : departed) {
+                if (s.charAt(s.length() - 1) != c || tagCounts.contains(s)) continue;
+                Node node = suffixIndex.get(s);
+                if (node == null) continue;
+                node.remove(tag);
+                if (node.size == 0) suffixIndex.put(s, null);
+            }
+            for (String s : tagCounts.keys()) {
+                suffixIndex.get(s).put(tag, (double) tagCounts.get(s));
+            }
+        }
+
+        if (group == null) return;
+        for (String token : group.keys()) {
+            Node node = group.get(token);
+            for (int i = 0; i < node.size; i++) {
+                int tag = node.tags[i];
+                if (tags.contains(tag)) smoothSuffix(token, tag, teta);
+            }
+        }
     }
 
     /**
@@ -65,24 +515,35 @@ public class TagDictionary {
         Node node = tokenIndex.get(token);
         if (node.freq >= suffixThreshold) return;
 
-        for (String tag : node.tags.keys())
-            addSuffixes(token, tag);
+        for (int i = 0; i < node.size; i++)
+            addSuffixes(token, node.tags[i]);
     }
 
     /**
      * Add suffixes for token and tag
      *
      * @param token Token
-     * @param tag Tag
+     * @param tag Tag id
      */
-    protected void addSuffixes(String token, String tag) {
-        String s = getSuffix(token);;
-        while (s.length() > 0) {
-            addSuffix(s, tag);
-            s = Utils.cutSuffix(s);
+    protected void addSuffixes(String token, int tag) {
+        for (int start = suffixStart(token); start < token.length(); start++) {
+            addSuffix(token, start, tag);
         }
     }
 
+    /**
+     * Gets start of token ending to keep in suffix index
+     *
+     * @param token Token
+     * @return suffix start
+     */
+    protected int suffixStart(String token)
+    {
+        int length = token.length();
+        if (length == 0) throw new IllegalArgumentException("Empty token");
+        return Math.max(length - maxSuffixLength, 0);
+    }
+
     /**
      * Gets token ending to keep in suffix index
      *
@@ -100,49 +561,76 @@ public class TagDictionary {
      * Add Node to the token-tag dictionary
      *
      * @param token Token
-     * @param tag Tag
+     * @param tag Tag id
      */
-    protected void addNode(String token, String tag)
+    protected void addNode(String token, int tag)
     {
+        if (token.length() == 0) throw new IllegalArgumentException("Empty token.");
         addNode(tokenIndex, token, tag);
+        tagFreq[tag]++;
     }
 
     /**
      * Add Node to the suffix-tag dictionary
      *
-     * @param suffix Suffix
-     * @param tag Tag
+     * @param token Token
+     * @param start Suffix start in token
+     * @param tag Tag id
      */
-    protected void addSuffix(String suffix, String tag)
+    protected void addSuffix(String token, int start, int tag)
     {
-        addNode(suffixIndex, suffix, tag);
+        Node node = suffixIndex.get(token, start, token.length());
+        if (node == null) {
+            suffixIndex.put(token, start, token.length(), newNode(tag));
+        } else {
+            addTag(node, tag);
+        }
     }
 
     /**
      * Add Node to the collector
      *
+     * @param index Index
      * @param token Token
-     * @param tag Tag
+     * @param tag Tag id
      */
-    protected void addNode(TST<Node> index, String token, String tag)
+    protected void addNode(StringST<Node> index, String token, int tag)
     {
-        Node node;
-        if (token.length() == 0) throw new IllegalArgumentException("Empty token.");
-        if (tag.length() == 0) throw new IllegalArgumentException("Empty tag.");
-        node = index.get(token);
+        Node node = index.get(token);
         if (node == null) {
-            node = new Node();
-            node.freq = 1;
-            node.token = token;
-            node.tags = new ST<>();
-            node.tags.put(tag, 1.0);
-            index.put(token, node);
+            index.put(token, newNode(tag));
         } else {
-            node.freq += 1;
-            node.tags.put(tag, node.tags.contains(tag) ? node.tags.get(tag) + 1.0 : 1.0);
+            addTag(node, tag);
         }
     }
 
+    /**
+     * Creates node seen once with tag
+     *
+     * @param tag Tag id
+     * @return node
+     */
+    protected Node newNode(int tag)
+    {
+        Node node = new Node();
+        node.freq = 1;
+        node.put(tag, 1.0);
+
+        return node;
+    }
+
+    /**
+     * Counts one more occurrence of node with tag
+     *
+     * @param node Node
+     * @param tag Tag id
+     */
+    protected void addTag(Node node, int tag)
+    {
+        node.freq += 1;
+        node.add(tag, 1.0);
+    }
+
     /**
      * Add tagged phrase to the dictionary
      *
@@ -154,11 +642,178 @@ public class TagDictionary {
         if (tokens.size() == 0) throw new IllegalArgumentException("Empty tokens");
         if (tags.size() == 0) throw new IllegalArgumentException("Empty tags");
         if (tags.size() != tokens.size()) throw new IllegalArgumentException("Invalid tokens/tags queues");
-        String tag;
-        Queue<String> tagsCopy = Utils.copy(tags);
+        String[] tokenArray = new String[tokens.size()], tagArray = new String[tags.size()];
+        int i = 0;
         for (String token: tokens) {
-            tag = tagsCopy.dequeue();
-            addNode(token, tag);
+            tokenArray[i++] = token;
+        }
+        i = 0;
+        for (String tag: tags) {
+            tagArray[i++] = tag;
+        }
+        addTaggedPhrase(tokenArray, tagArray, tokenArray.length);
+    }
+
+    /**
+     * Add tagged phrase tokens[0..n-1], tags[0..n-1] to the dictionary
+     *
+     * @param tokens Tokens
+     * @param tags Tags
+     * @param n Number of tokens
+     */
+    public void addTaggedPhrase(String[] tokens, String[] tags, int n)
+    {
+        if (n == 0) throw new IllegalArgumentException("Empty tokens");
+        if (!online) {
+            for (int i = 0; i < n; i++) {
+                addNode(tokens[i], internTag(tags[i]));
+            }
+            return;
+        }
+
+        clearSuffixCache();
+        ST<Character, ST<Integer, Boolean>> dirty = new ST<>();
+        Queue<String> departed = new Queue<>();
+        for (int i = 0; i < n; i++) {
+            addOnline(tokens[i], internTag(tags[i]), dirty, departed);
+        }
+        for (char c : dirty.keys()) {
+            resmooth(c, dirty.get(c), departed);
+        }
+    }
+
+    /**
+     * Merges counts of another dictionary into this one.
+     * Meant for dictionaries collected over input shards,
+     * before suffix indices are built.
+     *
+     * @param that Dictionary to merge
+     */
+    public void merge(TagDictionary that)
+    {
+        clearSuffixCache();
+        int[] remap = new int[that.tagCount];
+        for (int i = 0; i < that.tagCount; i++) {
+            remap[i] = internTag(that.tagNames[i]);
+            tagFreq[remap[i]] += that.tagFreq[i];
+        }
+        merge(tokenIndex, that.tokenIndex, remap);
+        merge(suffixIndex, that.suffixIndex, remap);
+    }
+
+    /**
+     * Adds token and tag counts of another index
+     *
+     * @param index Index
+     * @param that Index to merge
+     * @param remap Tag id in this dictionary by tag id in that one
+     */
+    protected void merge(StringST<Node> index, StringST<Node> that, int[] remap)
+    {
+        Node node, other;
+        for (String token : that.keys()) {
+            other = that.get(token);
+            node = index.get(token);
+            if (node == null) {
+                node = new Node();
+                index.put(token, node);
+            }
+            node.freq += other.freq;
+            for (int i = 0; i < other.size; i++) {
+                node.add(remap[other.tags[i]], other.counts[i]);
+            }
+        }
+    }
+
+    /**
+     * Writes tags, token and suffix indices
+     *
+     * @param out Output
+     * @throws IOException
+     */
+    protected void write(DataOutputStream out) throws IOException
+    {
+        out.writeInt(suffixThreshold);
+        out.writeInt(maxSuffixLength);
+        out.writeDouble(teta);
+        out.writeInt(tagCount);
+        for (int i = 0; i < tagCount; i++) {
+            ModelFile.writeString(out, tagNames[i]);
+            out.writeInt(tagFreq[i]);
+        }
+        write(out, tokenIndex);
+        write(out, suffixIndex);
+    }
+
+    /**
+     * Writes index nodes in balanced insertion order
+     *
+     * @param out Output
+     * @param index Index
+     * @throws IOException
+     */
+    protected void write(DataOutputStream out, StringST<Node> index) throws IOException
+    {
+        String[] keys = new String[index.size()];
+        int i = 0;
+        for (String token : index.keys()) {
+            keys[i++] = token;
+        }
+
+        out.writeInt(keys.length);
+        for (String token : ModelFile.balanced(keys)) {
+            Node node = index.get(token);
+            ModelFile.writeString(out, token);
+            out.writeInt(node.freq);
+            out.writeInt(node.size);
+            for (int j = 0; j < node.size; j++) {
+                out.writeShort(node.tags[j]);
+                out.writeDouble(node.counts[j]);
+            }
+        }
+    }
+
+    /**
+     * Reads tags, token and suffix indices into empty dictionary
+     *
+     * @param in Input
+     */
+    protected void read(ByteBuffer in)
+    {
+        suffixThreshold = in.getInt();
+        maxSuffixLength = in.getInt();
+        teta = in.getDouble();
+        int tags = in.getInt();
+        for (int i = 0; i < tags; i++) {
+            int id = internTag(ModelFile.readString(in));
+            tagFreq[id] = in.getInt();
+        }
+        read(in, tokenIndex);
+        read(in, suffixIndex);
+        clearSuffixCache();
+    }
+
+    /**
+     * Reads index nodes
+     *
+     * @param in Input
+     * @param index Index
+     */
+    protected void read(ByteBuffer in, StringST<Node> index)
+    {
+        int n = in.getInt();
+        for (int i = 0; i < n; i++) {
+            String token = ModelFile.readString(in);
+            Node node = new Node();
+            node.freq = in.getInt();
+            node.size = in.getInt();
+            node.tags = new short[node.size];
+            node.counts = new double[node.size];
+            for (int j = 0; j < node.size; j++) {
+                node.tags[j] = in.getShort();
+                node.counts[j] = in.getDouble();
+            }
+            index.put(token, node);
         }
     }
 
@@ -172,6 +827,77 @@ public class TagDictionary {
         return tokenIndex.size();
     }
 
+    /**
+     * Suffix index size
+     *
+     * @return number of indexed suffixes
+     */
+    public int suffixSize()
+    {
+        return suffixIndex.size();
+    }
+
+    /**
+     * Tag frequency
+     *
+     * @param tag Tag id, -1 for unknown tag
+     * @return number of tokens tagged with tag
+     */
+    public int tagFrequency(int tag)
+    {
+        return tag < 0 ? 0 : tagFreq[tag];
+    }
+
+    /**
+     * Creates reusable token handle
+     *
+     * @return token handle
+     */
+    public Token token()
+    {
+        return new Token();
+    }
+
+    /**
+     * Emission probability P(token|tag): token count with tag, or the count
+     * of its longest known suffix if the token was never seen with the tag,
+     * divided by tag frequency
+     *
+     * @param token Token
+     * @param tag Tag
+     * @return emission probability
+     */
+    public double emission(String token, String tag)
+    {
+        return emission(token().set(token), tagId(tag));
+    }
+
+    /**
+     * Emission probability P(token|tag)
+     *
+     * @param token Token handle
+     * @param tag Tag id, -1 for unknown tag
+     * @return emission probability
+     */
+    public double emission(Token token, int tag)
+    {
+        int freq = tagFrequency(tag);
+        if (freq == 0) {
+            token.source = ZERO;
+            return 0.0;
+        }
+
+        double count = token.node == null ? 0 : token.node.get(tag);
+        token.source = KNOWN;
+        if (count == 0) {
+            Node suffix = token.suffix();
+            count = suffix == null ? 0 : suffix.get(tag);
+            token.source = count == 0 ? ZERO : SUFFIX;
+        }
+
+        return count / (double) freq;
+    }
+
     /**
      * Count
      *
@@ -180,17 +906,28 @@ public class TagDictionary {
      * @return count
      */
     public double count(String token, String tag) {
+        return count(token, tagId(tag));
+    }
+
+    /**
+     * Count
+     *
+     * @param token Token
+     * @param tag Tag id, -1 for unknown tag
+     * @return count
+     */
+    public double count(String token, int tag) {
 
         Node node = tokenIndex.get(token);
         if (node == null) {
            return suffixCount(token, tag);
         }
 
-        if (node.tags.size() == 0) {
+        if (node.size == 0) {
             throw new IllegalArgumentException("Empty tags.");
         }
 
-        return node.tags.contains(tag) ? node.tags.get(tag) : 0;
+        return node.get(tag);
     }
 
     /**
@@ -201,26 +938,28 @@ public class TagDictionary {
      * @return count
      */
     public double suffixCount(String token, String tag) {
+        return suffixCount(token, tagId(tag));
+    }
 
-        String suffix = getSuffix(token);
-        Node node = null;
-        while (suffix.length() > 0) {
-            node = suffixIndex.get(suffix);
-            if (node != null) {
-                break;
-            }
-            suffix = Utils.cutSuffix(suffix);
-        }
+    /**
+     * Count
+     *
+     * @param token Token
+     * @param tag Tag id, -1 for unknown tag
+     * @return count
+     */
+    public double suffixCount(String token, int tag) {
 
-        if (node == null || suffix.length() == 0) {
+        Node node = longestSuffix(token);
+        if (node == null) {
             return 0;
         }
 
-        if (node.tags.size() == 0) {
+        if (node.size == 0) {
             throw new IllegalArgumentException("Empty tags.");
         }
 
-        return node.tags.contains(tag) ? node.tags.get(tag) : 0;
+        return node.get(tag);
     }
 
 
@@ -235,39 +974,39 @@ public class TagDictionary {
          for(String token: tokenIndex.keys()) {
              node = tokenIndex.get(token);
              if (node.freq < suffixThreshold) {
-                 for(String tag: node.tags.keys())
-                     smoothSuffix(getSuffix(token), tag, teta);
+                 for(int i = 0; i < node.size; i++)
+                     smoothSuffix(token, node.tags[i], teta);
              }
          }
      }
 
     /**
-     * Smoothes tag counts for tokens with suffixes
+     * Smoothes tag counts for token suffixes, from longest to shortest
      *
-     * @param suffix Suffix to smooth count for
-     * @param tag Tag of token with suffix
+     * @param token Token to smooth suffix counts for
+     * @param tag Tag id of token with suffix
      * @param teta Smoothing factor
      */
-    protected void smoothSuffix(String suffix, String tag, double teta)
+    protected void smoothSuffix(String token, int tag, double teta)
     {
-        double freq;
+        int i;
         Node node, prev = null;
-        while(suffix.length() > 0) {
-            node = suffixIndex.get(suffix);
+        int end = token.length();
+        for (int start = suffixStart(token); start < end; start++) {
+            node = suffixIndex.get(token, start, end);
             if(node == null) {
-                throw new IllegalArgumentException("Missing suffix: " + suffix);
+                throw new IllegalArgumentException("Missing suffix: " + token.substring(start));
             }
-            if(node.tags.size() == 0) {
-                throw new IllegalArgumentException("Empty tags for suffix: " + suffix);
+            if(node.size == 0) {
+                throw new IllegalArgumentException("Empty tags for suffix: " + token.substring(start));
             }
-            if(!node.tags.contains(tag)) {
-                throw new IllegalArgumentException("Missing tag: " + tag + " for suffix: " + suffix);
+            i = node.find(tag);
+            if(i < 0) {
+                throw new IllegalArgumentException("Missing tag: " + tagNames[tag] + " for suffix: " + token.substring(start));
             }
             if (prev != null) {
-                freq = (node.tags.get(tag) + teta * (prev.tags.contains(tag) ? prev.tags.get(tag) : 0)) / (1 + teta);
-                node.tags.put(tag, freq);
+                node.counts[i] = (node.counts[i] + teta * prev.get(tag)) / (1 + teta);
             }
-            suffix = Utils.cutSuffix(suffix);
             prev = node;
         }
     }
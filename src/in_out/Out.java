@@ -9,6 +9,7 @@ package in_out;
  *************************************************************************/
 
 
+import java.io.BufferedWriter;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -50,6 +51,30 @@ public class Out {
         catch (IOException e) { e.printStackTrace(); }
     }
 
+   /**
+     * Create an Out object using an OutputStream, writing through a buffer
+     * of the given size. The print methods still flush it; write only
+     * flushes it when full, so output is batched until flush or close.
+     */
+    public Out(OutputStream os, int bufferSize) {
+        try {
+            OutputStreamWriter osw = new OutputStreamWriter(os, CHARSET_NAME);
+            out = new PrintWriter(new BufferedWriter(osw, bufferSize), false);
+        }
+        catch (IOException e) { e.printStackTrace(); }
+    }
+
+   /**
+     * Create an Out object using a file specified by the given name,
+     * writing through a buffer of the given size.
+     */
+    public Out(String s, int bufferSize) {
+        try {
+            this.out = new Out(new FileOutputStream(s), bufferSize).out;
+        }
+        catch (IOException e) { e.printStackTrace(); }
+    }
+
    /**
      * Create an Out object using standard output.
      */
@@ -84,6 +109,11 @@ public class Out {
      */
     public void close() { out.close(); }
 
+   /**
+     * Flush the output stream.
+     */
+    public void flush() { out.flush(); }
+
 
 
    /**
@@ -151,6 +181,14 @@ public class Out {
 
 
 
+   /**
+     * Write a character sequence without flushing the output stream,
+     * for writers made with a buffer size to batch their output.
+     */
+    public void write(CharSequence x) {
+        out.append(x);
+    }
+
    /**
      * Flush the output stream.
      */
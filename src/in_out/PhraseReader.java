@@ -0,0 +1,261 @@
+package in_out;
+
+/*************************************************************************
+ *  Compilation:  javac PhraseReader.java
+ *
+ *  Reads token\ttag lines of a UTF-8 file through a memory map.
+ *
+ *************************************************************************/
+
+import algorithms.Interner;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *  The <tt>PhraseReader</tt> class reads tagged phrases - one token\ttag
+ *  pair per line, an empty line after each phrase - from a byte range of a
+ *  UTF-8 file. The file is memory mapped in windows; line and field
+ *  boundaries are found in the raw bytes, and tokens and tags are resolved
+ *  to canonical strings by an {@link Interner} straight from the mapped
+ *  bytes, so a token or tag seen before costs no allocation. The interner
+ *  keeps the first million distinct tokens and tags; beyond that memory
+ *  stops growing and newer ones are decoded on every line, with no id.
+ *  <p>
+ *  Lines end like for {@link java.io.BufferedReader#readLine()}: with
+ *  <tt>\n</tt>, <tt>\r</tt> or <tt>\r\n</tt>. Lines <tt>START</tt> and
+ *  <tt>STOP</tt> stand for both token and tag. Other lines are split at
+ *  tabs like <tt>String.split("\t")</tt>, and need a token and a tag.
+ *
+ *  @author Valeriya Slovikovskaya vslovik@gmail.com
+ */
+public class PhraseReader implements Closeable {
+
+    private static final long WINDOW = 1L << 30;
+    private static final int DISTINCT = 1 << 20; // most interned tokens and tags
+    private static final byte[] START = {'S', 'T', 'A', 'R', 'T'};
+    private static final byte[] STOP = {'S', 'T', 'O', 'P'};
+
+    private final FileChannel channel;
+    private final long end;            // end of the byte range
+    private MappedByteBuffer window;
+    private long windowStart;
+    private int windowLimit;
+    private long position;             // offset of the next line
+    private long lineStart, lineEnd;   // offsets of the current line, lineEnd after its terminator
+    private int from, to;              // current line bytes in the window, without terminator
+    private final Interner interner = new Interner(DISTINCT);
+    private String token, tag;
+    private int tokenId, tagId;
+
+    /**
+     * Opens file for reading.
+     *
+     * @param file the file name
+     * @throws IOException
+     */
+    public PhraseReader(String file) throws IOException {
+        this(file, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Opens a byte range of file for reading.
+     *
+     * @param file the file name
+     * @param from range start
+     * @param to range end, clipped to the file size
+     * @throws IOException
+     */
+    public PhraseReader(String file, long from, long to) throws IOException {
+        channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+        end = Math.min(to, channel.size());
+        position = from;
+        lineStart = lineEnd = from;
+    }
+
+    /**
+     * Reads the next line.
+     *
+     * @return <tt>false</tt> at the end of the range
+     * @throws IOException
+     * @throws IllegalArgumentException if the line is not a token\ttag line
+     */
+    public boolean next() throws IOException {
+        if (position >= end) return false;
+        if (window == null || position < windowStart || position >= windowStart + windowLimit) map(position);
+        if (!scan()) {
+            if (position == windowStart) throw new IOException("Line too long at " + position);
+            map(position);
+            if (!scan()) throw new IOException("Line too long at " + position);
+        }
+        parse();
+
+        return true;
+    }
+
+    /**
+     * Is the current line empty?
+     *
+     * @return <tt>true</tt> for an empty line
+     */
+    public boolean isEmpty() {
+        return from == to;
+    }
+
+    /**
+     * Returns the token of the current line.
+     *
+     * @return canonical token string, <tt>null</tt> for an empty line
+     */
+    public String token() {
+        return token;
+    }
+
+    /**
+     * Returns the tag of the current line.
+     *
+     * @return canonical tag string, <tt>null</tt> for an empty line
+     */
+    public String tag() {
+        return tag;
+    }
+
+    /**
+     * Returns the id of the token of the current line. Ids number the
+     * distinct tokens and tags met so far, from 0, in the order they appear.
+     * Tokens and tags left out of the full interner get no id: compare
+     * their strings instead.
+     *
+     * @return token id, -1 for an empty line or a token left out of the interner
+     */
+    public int tokenId() {
+        return tokenId;
+    }
+
+    /**
+     * Returns the id of the tag of the current line.
+     *
+     * @return tag id, -1 for an empty line or a tag left out of the interner
+     */
+    public int tagId() {
+        return tagId;
+    }
+
+    /**
+     * Returns the byte offset of the current line.
+     *
+     * @return the offset
+     */
+    public long lineStart() {
+        return lineStart;
+    }
+
+    /**
+     * Returns the byte offset right after the current line and its terminator.
+     *
+     * @return the offset
+     */
+    public long lineEnd() {
+        return lineEnd;
+    }
+
+    /**
+     * Returns the number of distinct tokens and tags interned.
+     *
+     * @return the number of interned strings
+     */
+    public int distinct() {
+        return interner.size();
+    }
+
+    /**
+     * Closes the file.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // maps window starting at offset p
+    private void map(long p) throws IOException {
+        windowStart = p;
+        windowLimit = (int) Math.min(WINDOW, end - p);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, p, windowLimit);
+    }
+
+    // finds the line at position, false if it may continue past the window
+    private boolean scan() {
+        int i = (int) (position - windowStart);
+        byte b = 0;
+        while (i < windowLimit) {
+            b = window.get(i);
+            if (b == '\n' || b == '\r') break;
+            i++;
+        }
+        if (windowStart + windowLimit < end && i >= windowLimit - 1) return false;
+
+        int next = i;
+        if (i < windowLimit) {
+            next++;
+            if (b == '\r' && next < windowLimit && window.get(next) == '\n') next++;
+        }
+        from = (int) (position - windowStart);
+        to = i;
+        lineStart = position;
+        position = windowStart + next;
+        lineEnd = position;
+
+        return true;
+    }
+
+    // resolves token and tag of the current line
+    private void parse() {
+        token = tag = null;
+        tokenId = tagId = -1;
+        if (from == to) return;
+        if (is(START) || is(STOP)) {
+            tokenId = tagId = interner.intern(window, from, to);
+            token = tag = string(tokenId, from, to);
+            return;
+        }
+
+        int tab = from;
+        while (tab < to && window.get(tab) != '\t') tab++;
+        int tagEnd = tab + 1, last = to;
+        while (tagEnd < to && window.get(tagEnd) != '\t') tagEnd++;
+        while (last > tab && window.get(last - 1) == '\t') last--;
+        if (tab == to || last == tab) throw new IllegalArgumentException("Invalid token\\ttag line");
+
+        tokenId = interner.intern(window, from, tab);
+        tagId = interner.intern(window, tab + 1, tagEnd);
+        token = string(tokenId, from, tab);
+        tag = string(tagId, tab + 1, tagEnd);
+    }
+
+    // canonical string of interned id, else bytes window[from..to-1] decoded
+    private String string(int id, int from, int to) {
+        if (id >= 0) return interner.string(id);
+        byte[] bytes = new byte[to - from];
+        for (int i = from; i < to; i++) {
+            bytes[i - from] = window.get(i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+
+    // does the current line equal word?
+    private boolean is(byte[] word) {
+        if (to - from != word.length) return false;
+        for (int i = 0; i < word.length; i++) {
+            if (window.get(from + i) != word[i]) return false;
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,210 @@
+package score;
+
+import algorithms.Queue;
+import algorithms.ScoreCache;
+import features.NGramCollector;
+import features.TagDictionary;
+
+import java.util.Arrays;
+
+/**
+ * The <tt>PhraseBuffer</tt> class holds the tagged phrase being trained on
+ * or scored: canonical token and tag strings, their ids as given by the
+ * reader, and the byte offsets of their lines in growable arrays. Like
+ * {@link ScoredTaggedPhrase} it starts with a START pair and gets a STOP
+ * pair when added or scored. A buffer is cleared and reused for each
+ * phrase; only phrases that are kept are copied into a
+ * <tt>ScoredTaggedPhrase</tt>.
+ *
+ * @author Valeriya Slovikovskaya vslovik@gmail.com
+ */
+public class PhraseBuffer {
+
+    protected int size;                          // number of tokens, START and STOP included
+    protected String[] tokens = new String[64];
+    protected String[] tags = new String[64];
+    protected int[] tokenIds = new int[64];      // reader ids, -1 for START and STOP pairs of the buffer
+    protected int[] tagIds = new int[64];        // reader ids, -1 for START and STOP pairs of the buffer
+    protected long[] offsets = new long[64];     // line offsets, -1 for pairs not read from a file
+    protected double score;
+    protected long seq;                          // phrase number in the scored file, breaks score ties
+    protected ScoredTaggedPhrase.Key key = new ScoredTaggedPhrase.Key(); // hash of tokens and tags
+    protected boolean hashed;                    // key is up to date
+
+    /**
+     * Buffer constructor
+     */
+    public PhraseBuffer()
+    {
+        clear();
+    }
+
+    /**
+     * Starts next phrase
+     */
+    public void clear()
+    {
+        size = 0;
+        score = 0.0;
+        hashed = false;
+        add("START", "START");
+    }
+
+    /**
+     * Number of tokens, START and STOP included
+     *
+     * @return size
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Adds next tagged token
+     *
+     * @param token Token
+     * @param tag Tag
+     */
+    public void add(String token, String tag)
+    {
+        add(token, -1, tag, -1, -1);
+    }
+
+    /**
+     * Adds next tagged token read from a file
+     *
+     * @param token Token
+     * @param tokenId Token id, -1 if none
+     * @param tag Tag
+     * @param tagId Tag id, -1 if none
+     * @param offset Line offset, -1 if none
+     */
+    public void add(String token, int tokenId, String tag, int tagId, long offset)
+    {
+        if (size == tokens.length) resize(2 * size);
+        tokens[size] = token;
+        tags[size] = tag;
+        tokenIds[size] = tokenId;
+        tagIds[size] = tagId;
+        offsets[size] = offset;
+        size++;
+        hashed = false;
+    }
+
+    /**
+     * Adds phrase <em>N</em>-grams into token and tags collectors
+     *
+     * @param tnc Tag collector
+     * @param td Tag dictionary
+     */
+    public void add(NGramCollector tnc, TagDictionary td)
+    {
+        add("STOP", "STOP");
+        tnc.addPhrase(tags, size);
+        td.addTaggedPhrase(tokens, tags, size);
+    }
+
+    /**
+     * Scores phrase unless its score turns out to be below floor,
+     * see {@link ScoredTaggedPhrase#score(PhraseScorer, double)}
+     *
+     * @param scorer Scorer
+     * @param floor Score the phrase is of no interest below
+     * @return false if the phrase scores below floor
+     */
+    public boolean score(PhraseScorer scorer, double floor)
+    {
+        add("STOP", "STOP");
+        floor *= ScoredTaggedPhrase.SLACK;
+        score = scorer.score(this, floor);
+
+        return !(score < floor);
+    }
+
+    /**
+     * Scores phrase like {@link #score(PhraseScorer, double)}, taking the
+     * score of an equal phrase from the cache if it is there. Only scores
+     * taken in full are cached, so a phrase given up below one floor is
+     * scored again against the next one.
+     *
+     * @param scorer Scorer
+     * @param cache Scores by phrase key, null for none
+     * @param floor Score the phrase is of no interest below
+     * @return false if the phrase scores below floor
+     */
+    public boolean score(PhraseScorer scorer, ScoreCache cache, double floor)
+    {
+        if (cache == null) return score(scorer, floor);
+        add("STOP", "STOP");
+        floor *= ScoredTaggedPhrase.SLACK;
+        ScoredTaggedPhrase.Key key = key();
+        score = cache.get(key.hi, key.lo);
+        if (Double.isNaN(score)) {
+            score = scorer.score(this, floor);
+            if (!(score < floor)) cache.put(key.hi, key.lo, score);
+        }
+
+        return !(score < floor);
+    }
+
+    /**
+     * Gets the hash of the token and tag sequence, equal to
+     * {@link ScoredTaggedPhrase#key()} of the copied phrase
+     *
+     * @return phrase key, valid until the buffer changes
+     */
+    public ScoredTaggedPhrase.Key key()
+    {
+        if (!hashed) {
+            key.start();
+            for (int i = 0; i < size; i++) {
+                key.add(tokens[i]).add(tags[i]);
+            }
+            key.finish();
+            hashed = true;
+        }
+
+        return key;
+    }
+
+    /**
+     * Gets the byte offset of the first line of phrase
+     *
+     * @return offset, -1 if not read from a file
+     */
+    public long start()
+    {
+        return size > 1 ? offsets[1] : -1;
+    }
+
+    /**
+     * Copies phrase to keep it
+     *
+     * @return scored phrase
+     */
+    public ScoredTaggedPhrase toPhrase()
+    {
+        ScoredTaggedPhrase sp = new ScoredTaggedPhrase();
+        Queue<String> phraseTokens = sp.tokens, phraseTags = sp.tags;
+        for (int i = 1; i < size; i++) {
+            phraseTokens.enqueue(tokens[i]);
+            phraseTags.enqueue(tags[i]);
+        }
+        sp.score = score;
+        sp.seq = seq;
+        if (hashed) sp.key = key.copy();
+
+        return sp;
+    }
+
+    private void resize(int capacity)
+    {
+        tokens = Arrays.copyOf(tokens, capacity);
+        tags = Arrays.copyOf(tags, capacity);
+        tokenIds = Arrays.copyOf(tokenIds, capacity);
+        tagIds = Arrays.copyOf(tagIds, capacity);
+        offsets = Arrays.copyOf(offsets, capacity);
+    }
+
+}
@@ -0,0 +1,294 @@
+package score;
+
+import features.NGramCollector;
+import features.TagDictionary;
+
+import java.util.Arrays;
+
+/**
+ * The <tt>PhraseScorer</tt> class computes the "Markov model" score of
+ * {@link ScoredTaggedPhrase#scoreMarkov} in one pass over a tagged phrase:
+ * a window of <em>N</em> tags slides over a {@link PhraseBuffer},
+ * each position takes one n-gram score and one emission probability.
+ * Collector and dictionary ids of tags are looked up once per reader tag id,
+ * so a scorer is meant for phrases of one reader.
+ * Buffers are reused from phrase to phrase, so a scorer kept by a thread
+ * scores phrases of known tags without allocation. Results are identical
+ * to <tt>scoreMarkov</tt>: factors are multiplied in the same order.
+ *
+ * @author Valeriya Slovikovskaya vslovik@gmail.com
+ */
+public class PhraseScorer {
+
+    protected static final int UNRESOLVED = Integer.MIN_VALUE;
+
+    protected NGramCollector tnc;
+    protected TagDictionary td;
+    protected TagDictionary.Token token;
+    protected int n;                                // n-gram rang
+
+    protected PhraseBuffer phrase = new PhraseBuffer(); // phrase added pair by pair
+    protected PhraseBuffer scored;                  // phrase being scored
+    protected int[] gramIds = new int[64];          // collector tag ids by position, -1 for unknown tags
+    protected int[] tagIds = new int[64];           // dictionary tag ids by position, -1 for unknown tags
+    protected double[] grams = new double[64];      // n-gram scores by first position
+    protected double[] tails = new double[65];      // products of n-gram scores from position on
+    protected int[] gramIdCache = new int[0];       // collector tag id by reader tag id
+    protected int[] tagIdCache = new int[0];        // dictionary tag id by reader tag id
+    protected long[] emissions = new long[3];       // emission probabilities taken by source, see TagDictionary.KNOWN
+
+    /**
+     * Scorer constructor
+     *
+     * @param tnc Tag n-gram collector
+     * @param td Tag dictionary
+     */
+    public PhraseScorer(NGramCollector tnc, TagDictionary td)
+    {
+        this.tnc = tnc;
+        this.td = td;
+        this.n = tnc.N;
+        this.token = td.token();
+    }
+
+    /**
+     * Starts next phrase to add pair by pair
+     */
+    public void clear()
+    {
+        phrase.size = 0;
+    }
+
+    /**
+     * Adds next tagged token of phrase, START and STOP included
+     *
+     * @param token Token
+     * @param tag Tag
+     */
+    public void add(String token, String tag)
+    {
+        phrase.add(token, tag);
+    }
+
+    /**
+     * Scores phrase added pair by pair
+     *
+     * @param floor Bound to give up below, negative infinity to score in full
+     * @return score, or a bound of it below floor if given up
+     */
+    public double score(double floor)
+    {
+        return score(phrase, floor);
+    }
+
+    /**
+     * Scores phrase, START and STOP included, giving up once the score
+     * times the n-gram scores to come is below floor. The score so far of a
+     * phrase given up may well be above floor, so that bound is returned
+     * instead: the phrase is known to score below floor, not how much.
+     *
+     * @param p Phrase
+     * @param floor Bound to give up below, negative infinity to score in full
+     * @return score, or a bound of it below floor if given up
+     */
+    public double score(PhraseBuffer p, double floor)
+    {
+        int size = p.size;
+        if (size < n - 1) throw new IllegalArgumentException();
+        if (size < n) throw new IllegalArgumentException(tagString(p));
+        if (gramIds.length < size) resize(Math.max(size, 2 * gramIds.length));
+        scored = p;
+        for (int i = 0; i < size; i++) {
+            resolve(p, i);
+        }
+
+        double first = tnc.scoreGram(p.tags, gramIds, 0, n - 1) * emission(n - 2);
+
+        int windows = size - n + 1;
+        double ph_sc = 0.1 / windows;
+        for (int i = 0; i < windows; i++) {
+            grams[i] = tnc.scoreGram(p.tags, gramIds, i, n);
+        }
+        boolean bounded = floor != Double.NEGATIVE_INFINITY;
+        if (bounded) {
+            tails[windows] = 1.0;
+            for (int i = windows - 1; i > 0; i--) {
+                tails[i] = grams[i] * tails[i + 1];
+            }
+        }
+
+        double score = grams[0] * emission(n - 1);
+        for (int i = 1; i < windows; i++) {
+            if (bounded) {
+                double bound = first * (ph_sc * (score * tails[i]));
+                if (bound < floor) return bound;
+            }
+            score *= grams[i] * emission(i + n - 1);
+        }
+
+        return first * (ph_sc * score);
+    }
+
+    /**
+     * Resolves collector and dictionary ids of tag at position,
+     * through the caches if the tag has a reader id
+     *
+     * @param p Phrase
+     * @param i Position
+     */
+    protected void resolve(PhraseBuffer p, int i)
+    {
+        int id = p.tagIds[i];
+        if (id < 0) {
+            gramIds[i] = tnc.id(p.tags[i]);
+            tagIds[i] = td.tagId(p.tags[i]);
+            return;
+        }
+        if (id >= gramIdCache.length) {
+            int length = gramIdCache.length;
+            gramIdCache = Arrays.copyOf(gramIdCache, Math.max(id + 1, 2 * length));
+            tagIdCache = Arrays.copyOf(tagIdCache, gramIdCache.length);
+            Arrays.fill(gramIdCache, length, gramIdCache.length, UNRESOLVED);
+        }
+        if (gramIdCache[id] == UNRESOLVED) {
+            gramIdCache[id] = tnc.id(p.tags[i]);
+            tagIdCache[id] = td.tagId(p.tags[i]);
+        }
+        gramIds[i] = gramIdCache[id];
+        tagIds[i] = tagIdCache[id];
+    }
+
+    /**
+     * Gets emission probability of token at position
+     *
+     * @param i Position
+     * @return emission probability
+     */
+    protected double emission(int i)
+    {
+        double emission = td.emission(token.set(scored.tokens[i]), tagIds[i]);
+        emissions[token.source()]++;
+
+        return emission;
+    }
+
+    /**
+     * Gets number of emission probabilities taken from a source
+     *
+     * @param source TagDictionary.KNOWN, SUFFIX or ZERO
+     * @return number of emission probabilities
+     */
+    public long emissions(int source)
+    {
+        return emissions[source];
+    }
+
+    /**
+     * Lists tags like a tag queue does
+     *
+     * @param p Phrase
+     * @return tags separated by spaces
+     */
+    protected String tagString(PhraseBuffer p)
+    {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < p.size; i++) {
+            s.append(p.tags[i]).append(' ');
+        }
+
+        return s.toString();
+    }
+
+    private void resize(int capacity)
+    {
+        gramIds = Arrays.copyOf(gramIds, capacity);
+        tagIds = Arrays.copyOf(tagIds, capacity);
+        grams = Arrays.copyOf(grams, capacity);
+        tails = Arrays.copyOf(tails, capacity + 1);
+    }
+
+    /**
+     * Copies token/tag pairs into phrase buffer
+     *
+     * @param pairs Pairs like "token/tag"
+     * @return phrase buffer, without STOP
+     */
+    protected static PhraseBuffer buffer(String[] pairs)
+    {
+        PhraseBuffer p = new PhraseBuffer();
+        for (String pair : pairs) {
+            int slash = pair.lastIndexOf('/');
+            p.add(pair.substring(0, slash), pair.substring(slash + 1));
+        }
+
+        return p;
+    }
+
+    /**
+     * Unit tests the <tt>PhraseScorer</tt>: trains on a few phrases, scores
+     * phrases with unknown tags and tokens, whose n-gram scores or emissions
+     * are 0, in full and bounded at the score of every phrase. A bounded phrase
+     * must be kept exactly when its full score reaches the floor, with the full
+     * score, and a phrase given up must score below floor in full.
+     */
+    public static void main(String[] args)
+    {
+        String[][] train = {
+                {"il/DET", "gatto/NOUN", "dorme/VERB"},
+                {"la/DET", "casa/NOUN", "bianca/ADJ", "cade/VERB"},
+                {"il/DET", "cane/NOUN", "nero/ADJ", "corre/VERB", "veloce/ADV"},
+                {"la/DET", "gatta/NOUN", "mangia/VERB", "il/DET", "pesce/NOUN"},
+                {"un/DET", "gatto/NOUN", "bianco/ADJ", "dorme/VERB", "molto/ADV"},
+                {"corre/VERB", "il/DET", "cane/NOUN"},
+        };
+        String[][] phrases = {
+                {"il/DET", "gatto/NOUN", "dorme/VERB"},
+                {"il/DET", "gatto/NOUN", "corre/VERB", "veloce/ADV"},
+                {"la/DET", "casa/NOUN", "nera/ADJ", "dorme/VERB", "molto/ADV"},
+                {"il/DET", "gatto/XX", "dorme/VERB", "veloce/ADV", "il/DET", "cane/NOUN"},
+                {"il/DET", "gatto/NOUN", "dorme/VERB", "molto/ADV", "il/DET", "cane/YY"},
+                {"qwz/DET", "gatto/NOUN", "dorme/VERB", "veloce/ADV"},
+                {"il/VERB", "gatto/DET", "dorme/ADV", "veloce/NOUN", "la/ADJ"},
+                {"il/DET", "cane/NOUN", "nero/ADJ", "corre/VERB", "veloce/ADV", "molto/ADV"},
+        };
+
+        NGramCollector tnc = new NGramCollector();
+        TagDictionary td = new TagDictionary();
+        for (String[] pairs : train) {
+            buffer(pairs).add(tnc, td);
+        }
+        td.buildSuffixIndex(tnc.suffixSmoothingFactor());
+        tnc.smoothTrigramCounts();
+        tnc.compile();
+
+        PhraseScorer scorer = new PhraseScorer(tnc, td);
+        double[] full = new double[phrases.length];
+        for (int i = 0; i < phrases.length; i++) {
+            PhraseBuffer p = buffer(phrases[i]);
+            p.score(scorer, Double.NEGATIVE_INFINITY);
+            full[i] = p.score;
+            System.out.println("phrase " + i + ": " + full[i]);
+        }
+
+        double[] floors = Arrays.copyOf(full, full.length + 1);
+        floors[full.length] = Double.MIN_VALUE;
+        int failures = 0, kept = 0, givenUp = 0;
+        for (int i = 0; i < phrases.length; i++) {
+            for (double floor : floors) {
+                PhraseBuffer p = buffer(phrases[i]);
+                boolean passed = p.score(scorer, floor);
+                boolean ok = passed ? p.score == full[i] : full[i] < floor;
+                if (passed) kept++;
+                else givenUp++;
+                if (!ok) {
+                    failures++;
+                    System.out.println("phrase " + i + " floor " + floor + ": " + (passed ? "kept" : "given up")
+                            + " at " + p.score + ", full score " + full[i]);
+                }
+            }
+        }
+        System.out.println(kept + " kept, " + givenUp + " given up, " + failures + " failures");
+        if (failures > 0) System.exit(1);
+    }
+
+}
@@ -0,0 +1,250 @@
+package score;
+
+import in_out.Out;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+/**
+ * The <tt>PhraseWriter</tt> class writes scored phrases to a file or to
+ * standard output through a large buffer. Each phrase is formatted into a
+ * reused builder and written with one call; output is only flushed when the
+ * buffer is full, on flush and on close.
+ *
+ * Formats:
+ * <tt>tsv</tt>     token\ttag lines, an empty line after each phrase;
+ * <tt>scored</tt>  the same, each phrase headed by a <tt># score</tt> line;
+ * <tt>jsonl</tt>   one JSON object with score, tokens and tags per line.
+ *
+ * Subclasses plug in other formats by overriding {@link #format}.
+ *
+ * @author Valeriya Slovikovskaya vslovik@gmail.com
+ */
+public class PhraseWriter {
+
+    public static final int BUFFER_SIZE = 1 << 20;
+
+    public enum Format { TSV, SCORED, JSONL }
+
+    protected Out out;
+    protected boolean stdout;  // flush instead of closing standard output
+    protected Format format;
+    protected StringBuilder sb = new StringBuilder(1024);
+
+    /**
+     * Writer constructor
+     *
+     * @param file Output file, null for standard output
+     * @param format Output format
+     */
+    public PhraseWriter(String file, Format format)
+    {
+        this.stdout = file == null;
+        this.out = stdout ? new Out(System.out, BUFFER_SIZE) : new Out(file, BUFFER_SIZE);
+        this.format = format;
+    }
+
+    /**
+     * Writer to a stream, flushed and not closed on close like standard output
+     *
+     * @param os Output stream
+     * @param format Output format
+     */
+    public PhraseWriter(OutputStream os, Format format)
+    {
+        this.stdout = true;
+        this.out = new Out(os, BUFFER_SIZE);
+        this.format = format;
+    }
+
+    /**
+     * Parses format name
+     *
+     * @param name tsv, scored or jsonl
+     * @return format
+     */
+    public static Format format(String name)
+    {
+        switch (name) {
+            case "tsv": return Format.TSV;
+            case "scored": return Format.SCORED;
+            case "jsonl": return Format.JSONL;
+            default: throw new IllegalArgumentException("Unknown format: " + name);
+        }
+    }
+
+    /**
+     * Writes phrase
+     *
+     * @param sp Scored phrase
+     */
+    public synchronized void write(ScoredTaggedPhrase sp)
+    {
+        sb.setLength(0);
+        format(sp, sb);
+        out.write(sb);
+    }
+
+    /**
+     * Writes phrases formatted beforehand
+     *
+     * @param text Formatted phrases
+     */
+    public synchronized void write(CharSequence text)
+    {
+        out.write(text);
+    }
+
+    /**
+     * Formats phrase
+     *
+     * @param sp Scored phrase
+     * @param sb Builder to append to
+     */
+    protected void format(ScoredTaggedPhrase sp, StringBuilder sb)
+    {
+        switch (format) {
+            case SCORED:
+                sb.append("# score\t").append(sp.score).append('\n');
+                sp.append(sb);
+                sb.append('\n');
+                break;
+            case JSONL:
+                json(sp, sb);
+                sb.append('\n');
+                break;
+            default:
+                sp.append(sb);
+                sb.append('\n');
+        }
+    }
+
+    /**
+     * Formats phrase as a JSON object, START and STOP left out
+     *
+     * @param sp Scored phrase
+     * @param sb Builder to append to
+     */
+    protected void json(ScoredTaggedPhrase sp, StringBuilder sb)
+    {
+        double score = sp.score;
+        sb.append("{\"score\":");
+        if (Double.isNaN(score) || Double.isInfinite(score)) sb.append("null");
+        else sb.append(score);
+
+        // boundaries are left out by position, so tokens and tags stay aligned
+        // whatever a token or tag reads: START comes first, STOP last once scored
+        int last = sp.tokens.size() - 1;
+        String endToken = null, endTag = null;
+        Iterator<String> tagIt = sp.tags.iterator();
+        for (String token : sp.tokens) {
+            endToken = token;
+            endTag = tagIt.next();
+        }
+        int to = last > 0 && endToken.equals("STOP") && endTag.equals("STOP") ? last : last + 1;
+
+        sb.append(",\"tokens\":[");
+        int i = 0;
+        for (String token : sp.tokens) {
+            if (i > 0 && i < to) {
+                if (i > 1) sb.append(',');
+                quote(token, sb);
+            }
+            i++;
+        }
+
+        sb.append("],\"tags\":[");
+        i = 0;
+        for (String tag : sp.tags) {
+            if (i > 0 && i < to) {
+                if (i > 1) sb.append(',');
+                quote(tag, sb);
+            }
+            i++;
+        }
+        sb.append("]}");
+    }
+
+    /**
+     * Appends JSON string literal
+     *
+     * @param s String
+     * @param sb Builder to append to
+     */
+    protected static void quote(String s, StringBuilder sb)
+    {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Flushes buffered output
+     */
+    public synchronized void flush()
+    {
+        out.flush();
+    }
+
+    /**
+     * Flushes buffered output, closing the file if any
+     */
+    public synchronized void close()
+    {
+        if (stdout) out.flush();
+        else out.close();
+    }
+
+    /**
+     * Unit tests the <tt>PhraseWriter</tt>: writes 1000 phrases to a stream
+     * that counts flushes, in each format, and checks that the buffer is only
+     * flushed by flush and close.
+     */
+    public static void main(String[] args)
+    {
+        final int[] flushes = new int[1];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream() {
+            @Override
+            public void flush() {
+                flushes[0]++;
+            }
+        };
+
+        int failures = 0;
+        for (Format format : Format.values()) {
+            flushes[0] = 0;
+            bytes.reset();
+            PhraseWriter writer = new PhraseWriter(bytes, format);
+            for (int i = 0; i < 1000; i++) {
+                ScoredTaggedPhrase sp = new ScoredTaggedPhrase();
+                sp.enqueue("token" + i, "TAG");
+                sp.enqueue("STOP");
+                sp.score = 1.0 / (i + 1);
+                writer.write(sp);
+            }
+            int written = flushes[0], buffered = bytes.size();
+            writer.flush();
+            int flushed = flushes[0];
+            writer.close();
+            System.out.println(format + ": " + written + " flushes writing, " + buffered + " bytes before flush, "
+                    + flushed + " after flush, " + flushes[0] + " after close, " + bytes.size() + " bytes");
+            if (written != 0 || buffered != 0 || flushed != 1 || flushes[0] != 2 || bytes.size() == 0) failures++;
+        }
+        System.out.println(failures + " failures");
+        if (failures > 0) System.exit(1);
+    }
+
+}
@@ -5,6 +5,8 @@ import features.NGramCollector;
 import features.TagDictionary;
 import utils.Utils;
 
+import java.util.Iterator;
+
 /**
  * The <tt>ScoredTaggedPhrase</tt> class represents a tagged sentence to score
  *
@@ -12,9 +14,17 @@ import utils.Utils;
  */
 public class ScoredTaggedPhrase implements Comparable<ScoredTaggedPhrase>{
 
+    /**
+     * Margin a score bound must stay below a floor by to abandon scoring,
+     * covering rounding of the bound, multiplied in another order than the score
+     */
+    protected static final double SLACK = 1 - 1e-9;
+
     protected Double score;
     protected Queue<String> tokens;
     protected Queue<String> tags;
+    protected long seq; // phrase number in the scored file, breaks score ties
+    protected Key key;  // hash of tokens and tags, null until taken
 
     /**
      * Class constructor
@@ -59,8 +69,19 @@ public class ScoredTaggedPhrase implements Comparable<ScoredTaggedPhrase>{
         String[] arr = line.split("\t");
         if (arr.length < 2) throw new IllegalArgumentException("Invalid token\\ttag line");
 
-        tokens.enqueue(arr[0]);
-        tags.enqueue(arr[1]);
+        enqueue(arr[0], arr[1]);
+    }
+
+    /**
+     * Adds next tagged token to tagged phrase
+     *
+     * @param token Token
+     * @param tag Tag
+     */
+    public void enqueue(String token, String tag)
+    {
+        tokens.enqueue(token);
+        tags.enqueue(tag);
     }
 
     /**
@@ -83,17 +104,44 @@ public class ScoredTaggedPhrase implements Comparable<ScoredTaggedPhrase>{
      * @param tnc Tag collector
      */
     public void score(NGramCollector tnc, TagDictionary td)
+    {
+        score(new PhraseScorer(tnc, td), Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Scores tagged phrase unless its score turns out to be below floor.
+     * Each factor of the score is a tag n-gram score times an emission
+     * probability. Tag n-gram scores are not bounded by 1, but they are cheap
+     * to take in advance: the running product times the n-gram scores still
+     * to come bounds the final score from above. Once the bound falls below
+     * floor the rest of the phrase is skipped and the score is left at the
+     * bound, below floor: the running product itself may still be above it.
+     *
+     * @param scorer Scorer, reused from phrase to phrase
+     * @param floor Score the phrase is of no interest below
+     * @return false if the phrase scores below floor
+     */
+    public boolean score(PhraseScorer scorer, double floor)
     {
         if (tokens.size() == 0) throw new IllegalArgumentException("Empty tokens");
         if (tags.size() == 0) throw new IllegalArgumentException("Empty tags");
 
         enqueue("STOP");
 
-        score = scoreMarkov(tnc, td);
+        scorer.clear();
+        Iterator<String> tagIt = tags.iterator();
+        for (String token : tokens) {
+            scorer.add(token, tagIt.next());
+        }
+        floor *= SLACK;
+        score = scorer.score(floor);
+
+        return !(score < floor);
     }
 
     /**
-     * Calculate "Markov model" score
+     * Calculate "Markov model" score. This is the reference form of the score:
+     * {@link PhraseScorer} takes the same score in one pass.
      *
      * @param tnc Tag n-gram collector
      * @param td Tag dictionary
@@ -150,7 +198,7 @@ public class ScoredTaggedPhrase implements Comparable<ScoredTaggedPhrase>{
         for (String tag : tags) {
             token = tokensCopy.dequeue();
             if (q.size() == n - 1) {
-                tdScore = tdScore(tnc, td, token, tag);
+                tdScore = tdScore(td, token, tag);
             }
             q.enqueue(tag);
 
@@ -167,38 +215,152 @@ public class ScoredTaggedPhrase implements Comparable<ScoredTaggedPhrase>{
      */
     public void print()
     {
-        String token, tag;
-        while (tokens.size() > 0) {
-            token = tokens.dequeue();
-            tag = tags.dequeue();
+        StringBuilder sb = new StringBuilder();
+        append(sb);
+        System.out.print(sb);
+    }
+
+    /**
+     * Appends token\ttag lines of phrase, START and STOP left out
+     *
+     * @param sb Builder to append to
+     */
+    public void append(StringBuilder sb)
+    {
+        Iterator<String> tagIt = tags.iterator();
+        for (String token : tokens) {
+            String tag = tagIt.next();
             if (!token.equals("START") && !token.equals("STOP")) {
-                System.out.println(token + "\t" + tag);
+                sb.append(token).append('\t').append(tag).append('\n');
             }
         }
     }
 
+    /**
+     * Gets the hash of the token and tag sequence, taking it on first call.
+     * Phrases are only equal by key once both are scored or added.
+     *
+     * @return phrase key
+     */
+    public Key key()
+    {
+        if (key == null) {
+            key = new Key().start();
+            Iterator<String> tagIt = tags.iterator();
+            for (String token : tokens) {
+                key.add(token).add(tagIt.next());
+            }
+            key.finish();
+        }
+
+        return key;
+    }
+
     /**
      * Gets output probability score
      *
-     * @param tnc NGramCollector
      * @param td TagDictionary
      * @param token String
      * @param tag String
      * @return output probability score
      */
-    protected double tdScore(NGramCollector tnc, TagDictionary td, String token, String tag)
+    protected double tdScore(TagDictionary td, String token, String tag)
     {
-        int count = tnc.count(tag);
-        if (count == 0) {
-            return 0.0;
+        return td.emission(token, tag);
+    }
+
+    /**
+     * 128 bit hash of a sequence of strings: two independent 64 bit hashes
+     * of the lengths and characters of the strings. Lengths go first,
+     * so different sequences never hash the same characters.
+     */
+    protected static final class Key {
+        protected long hi, lo;
+
+        /**
+         * Starts hashing a sequence
+         *
+         * @return this key
+         */
+        protected Key start()
+        {
+            hi = 0xcbf29ce484222325L;
+            lo = 0x9e3779b97f4a7c15L;
+            return this;
         }
 
-        double tdCount = td.count(token, tag);
-        if (tdCount == 0) {
-            return td.suffixCount(token, tag) / (double) count;
+        /**
+         * Hashes next string of the sequence
+         *
+         * @param s String
+         * @return this key
+         */
+        protected Key add(String s)
+        {
+            int length = s.length();
+            mix(length);
+            for (int i = 0; i < length; i++) {
+                mix(s.charAt(i));
+            }
+            return this;
+        }
+
+        /**
+         * Ends hashing the sequence, spreading bits of both halves
+         *
+         * @return this key
+         */
+        protected Key finish()
+        {
+            hi = spread(hi);
+            lo = spread(lo);
+            return this;
+        }
+
+        /**
+         * Copies key to keep it
+         *
+         * @return key copy
+         */
+        protected Key copy()
+        {
+            Key that = new Key();
+            that.hi = hi;
+            that.lo = lo;
+            return that;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key)) return false;
+            Key that = (Key) o;
+            return hi == that.hi && lo == that.lo;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (int) lo;
         }
 
-        return td.count(token, tag) / (double) count;
+        // FNV-1a step for hi, multiply and rotate step for lo
+        private void mix(int c)
+        {
+            hi = (hi ^ c) * 0x100000001b3L;
+            lo = Long.rotateLeft((lo + c) * 0xc2b2ae3d27d4eb4fL, 31);
+        }
+
+        // MurmurHash3 finalizer
+        private static long spread(long k)
+        {
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k >>> 33;
+            k *= 0xc4ceb93e81a85c0dL;
+            k ^= k >>> 33;
+            return k;
+        }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,136 @@
+package score;
+
+import algorithms.QuantileSketch;
+import features.NGramCollector;
+import features.TagDictionary;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The <tt>StreamCheck</tt> class tests streaming of {@link TopScored}:
+ * phrases streamed at or above and at or below cutoffs, scoring given up
+ * below the cutoff, must equal the phrases scored in full and filtered at
+ * the same cutoffs. Phrases with unknown tags and tokens, whose n-gram scores
+ * or emissions are 0, are streamed in small batches by several threads;
+ * the writer must be flushed once per batch with matches.
+ *
+ * @author Valeriya Slovikovskaya vslovik@gmail.com
+ */
+public class StreamCheck {
+
+    protected static final String[] TOKENS = {"il", "la", "gatto", "cane", "casa", "dorme", "corre", "nero", "bianca", "molto"};
+    protected static final String[] TAGS = {"DET", "DET", "NOUN", "NOUN", "NOUN", "VERB", "VERB", "ADJ", "ADJ", "ADV"};
+
+    /**
+     * Writes phrases of tokens with their tags, an empty line between phrases, some of them mistagged,
+     * unknown or with unknown tags
+     *
+     * @param file File
+     * @param phrases Number of phrases
+     * @param seed Seed
+     * @param noise Whether to put in unknown tags and tokens
+     * @throws IOException
+     */
+    protected static void phrases(Path file, int phrases, long seed, boolean noise) throws IOException
+    {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            long x = seed;
+            for (int p = 0; p < phrases; p++) {
+                if (p > 0) out.print("\n");
+                int length = 2 + p % 11;
+                for (int i = 0; i < length; i++) {
+                    x = x * 6364136223846793005L + 1442695040888963407L;
+                    int r = (int) (x >>> 33);
+                    int w = r % TOKENS.length;
+                    String token = TOKENS[w], tag = TAGS[w];
+                    if (r % 7 == 0) tag = TAGS[(w + 3) % TAGS.length];
+                    else if (noise && r % 97 == 0) tag = "XX";
+                    else if (noise && r % 89 == 0) token = "qz" + r % 5;
+                    out.print(token + "\t" + tag + "\n");
+                }
+            }
+        }
+    }
+
+    /**
+     * Streams phrases at cutoffs, scoring in full or not
+     *
+     * @param top Scorer
+     * @param file File to score
+     * @param above Lower cutoff, NaN for none
+     * @param below Upper cutoff, NaN for none
+     * @param full Whether to score every phrase in full
+     * @param flushes Flush counter
+     * @return streamed phrases
+     */
+    protected static String stream(TopScored top, String file, NGramCollector tnc, TagDictionary td,
+                                   double above, double below, boolean full, final int[] flushes)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream() {
+            @Override
+            public void flush() {
+                flushes[0]++;
+            }
+        };
+        PhraseWriter out = new PhraseWriter(bytes, PhraseWriter.Format.SCORED);
+        top.sketch = full ? new QuantileSketch(TopScored.SKETCH_ACCURACY) : null;
+        top.stream(file, tnc, td, above, below, out);
+        top.sketch = null;
+        out.close();
+
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Unit tests streaming of <tt>TopScored</tt>.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        Path train = Files.createTempFile("train", ".tsv"), scored = Files.createTempFile("scored", ".tsv");
+        try {
+            phrases(train, 200, 1, false);
+            phrases(scored, 500, 2, true);
+
+            TopScored top = new TopScored();
+            top.threads = 3;
+            top.batchSize = 8;
+            NGramCollector tnc = new NGramCollector();
+            TagDictionary td = new TagDictionary();
+            top.collect(train.toString(), new NGramCollector(), tnc, td);
+
+            // cutoffs at quantiles of the full scores, and at the least positive score
+            QuantileSketch scores = new QuantileSketch(TopScored.SKETCH_ACCURACY);
+            top.sketch = scores;
+            top.stream(scored.toString(), tnc, td, Double.NaN, Double.NaN, new PhraseWriter(new ByteArrayOutputStream(), PhraseWriter.Format.TSV));
+            top.sketch = null;
+            double q1 = scores.quantile(0.1), q3 = scores.quantile(0.3), q5 = scores.quantile(0.5), q7 = scores.quantile(0.7), q9 = scores.quantile(0.9);
+            double[][] cutoffs = {
+                    {q1, Double.NaN}, {q3, Double.NaN}, {q5, Double.NaN}, {q7, Double.NaN}, {q9, Double.NaN},
+                    {Double.MIN_VALUE, Double.NaN}, {Double.NaN, q3}, {Double.NaN, q7}, {Double.NaN, 0.0}, {q7, q3}
+            };
+            int failures = 0;
+            int[] flushes = new int[1], ignored = new int[1];
+            for (double[] cutoff : cutoffs) {
+                flushes[0] = 0;
+                String streamed = stream(top, scored.toString(), tnc, td, cutoff[0], cutoff[1], false, flushes);
+                String filtered = stream(top, scored.toString(), tnc, td, cutoff[0], cutoff[1], true, ignored);
+                int phrases = streamed.split("# score", -1).length - 1;
+                System.out.println("above " + cutoff[0] + " below " + cutoff[1] + ": " + phrases + " phrases, "
+                        + flushes[0] + " flushes" + (streamed.equals(filtered) ? "" : ", differs from full scoring"));
+                if (!streamed.equals(filtered)) failures++;
+                if (phrases > 0 && (flushes[0] < 2 || flushes[0] > 500 / top.batchSize + 2)) failures++;
+            }
+            System.out.println(failures + " failures");
+            if (failures > 0) System.exit(1);
+        } finally {
+            Files.delete(train);
+            Files.delete(scored);
+        }
+    }
+
+}
@@ -0,0 +1,362 @@
+package score;
+
+/***********************************************************************************
+ * Execution:
+ * java score.Tagger [options] [file to extract features from] [file with tokens to tag]
+ * java score.Tagger [options] -model [model file] [file with tokens to tag]
+ *
+ * Tokens to tag come one per line, empty line ends a sentence. Lines may carry
+ * a gold tag after a tab: it is ignored for tagging and used to report accuracy.
+ *
+ * Options:
+ * -beam [ratio]        drop paths less probable than the best one by more than ratio, 0 keeps all (default 1000)
+ *
+ * ********************************************************************************/
+
+import features.NGramCollector;
+import features.TagDictionary;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The <tt>Tagger</tt> class tags raw token streams with the trained
+ * tag n-gram collector and tag dictionary: a second order HMM decoded
+ * with the Viterbi algorithm and beam pruning, as in TnT.
+ *
+ * States are pairs of the last two tags, scores are log probabilities
+ * in primitive arrays indexed by collector tag ids. Transition scores are
+ * materialized once when the collector has compiled them; otherwise they
+ * are looked up on first use into rows of a bounded cache. Decoding buffers
+ * are reused across sentences.
+ * Tokens without any tag evidence, neither by themselves nor by a suffix,
+ * may take any tag and are left to the transition scores.
+ *
+ * @author Valeriya Slovikovskaya vslovik@gmail.com
+ */
+public class Tagger {
+
+    protected NGramCollector tnc;
+    protected TagDictionary td;
+    protected int v;                 // number of tags, START and STOP included
+    protected int start, stop;       // START and STOP tag ids
+    protected double logBeam;        // log of beam ratio, infinity for no pruning
+    protected static final int ROW_BUDGET = 1 << 22; // cached transition scores, too many tags
+
+    protected double[] logTri;       // log P(t3|t1,t2) by (t1 * v + t2) * v + t3, null for too many tags
+    protected double[][] logTriRows; // log P(t3|t1,t2) by t1 * v + t2 and t3, NaN until looked up, with too many tags
+    protected long cachedRows;       // number of rows in logTriRows
+    protected double[] logBi;        // log P(t2|t1) by t1 * v + t2
+    protected int[] dictionaryTags;  // tag dictionary tag id by tag id, -1 if absent
+
+    protected double[] delta, next;  // path scores by state t1 * v + t2
+    protected int[] active, reached; // live states of the current and the next position
+    protected int activeSize, reachedSize;
+    protected int[] back = new int[0]; // best t1 of state at position by position * v * v + state
+    protected double[] logEmission;    // emission log probabilities of current token by tag
+    protected int[] candidates;        // tags the current token may take
+    protected TagDictionary.Token token;
+
+    /**
+     * Tagger constructor
+     *
+     * @param tnc Tag n-gram collector, smoothed
+     * @param td Tag dictionary with suffix index
+     * @param beam Beam ratio, 0 or less to keep all paths
+     */
+    public Tagger(NGramCollector tnc, TagDictionary td, double beam)
+    {
+        this.tnc = tnc;
+        this.td = td;
+        v = tnc.size();
+        start = tnc.id("START");
+        stop = tnc.id("STOP");
+        if (start < 0 || stop < 0) throw new IllegalArgumentException("Model has no START/STOP tags");
+        logBeam = beam > 0 ? Math.log(beam) : Double.POSITIVE_INFINITY;
+
+        logTri = tnc.isCompiled() ? new double[v * v * v] : null;
+        if (logTri == null) logTriRows = new double[v * v][];
+        logBi = new double[v * v];
+        for (int t1 = 0; t1 < v; t1++) {
+            for (int t2 = 0; t2 < v; t2++) {
+                logBi[t1 * v + t2] = Math.log(tnc.bigramScore(t1, t2));
+                if (logTri == null) continue;
+                for (int t3 = 0; t3 < v; t3++) {
+                    logTri[(t1 * v + t2) * v + t3] = Math.log(tnc.trigramScore(t1, t2, t3));
+                }
+            }
+        }
+
+        dictionaryTags = new int[v];
+        for (int t = 0; t < v; t++) {
+            dictionaryTags[t] = td.tagId(tnc.key(t));
+        }
+
+        delta = new double[v * v];
+        next = new double[v * v];
+        active = new int[v * v];
+        reached = new int[v * v];
+        logEmission = new double[v];
+        candidates = new int[v];
+        token = td.token();
+    }
+
+    /**
+     * Gets transition log probability, from the materialized table if any
+     *
+     * @param s State t1 * v + t2
+     * @param t3 Next tag
+     * @return log P(t3|t1,t2)
+     */
+    protected double logTri(int s, int t3)
+    {
+        if (logTri != null) return logTri[s * v + t3];
+
+        double[] row = logTriRows[s];
+        if (row == null) {
+            if (++cachedRows * v > ROW_BUDGET) {
+                Arrays.fill(logTriRows, null);
+                cachedRows = 1;
+            }
+            row = logTriRows[s] = new double[v];
+            Arrays.fill(row, Double.NaN);
+        }
+        if (Double.isNaN(row[t3])) row[t3] = Math.log(tnc.trigramScore(s / v, s % v, t3));
+
+        return row[t3];
+    }
+
+    /**
+     * Gets tag by id
+     *
+     * @param id Tag id
+     * @return tag
+     */
+    public String tag(int id)
+    {
+        return tnc.key(id);
+    }
+
+    /**
+     * Tags sentence
+     *
+     * @param tokens Tokens
+     * @param n Number of tokens
+     * @param tags Buffer of at least n tag ids to fill
+     * @return log probability of the best tag sequence
+     */
+    public double tag(String[] tokens, int n, int[] tags)
+    {
+        if (n == 0) return 0.0;
+        int vv = v * v;
+        if (back.length < n * vv) back = new int[Math.max(n * vv, 2 * back.length)];
+
+        Arrays.fill(delta, Double.NaN);
+        activeSize = 0;
+        int k = candidates(tokens[0]);
+        for (int j = 0; j < k; j++) {
+            int t = candidates[j], s = start * v + t;
+            delta[s] = logBi[s] + logEmission[t];
+            back[s] = start;
+            active[activeSize++] = s;
+        }
+        prune();
+
+        for (int i = 1; i < n; i++) {
+            k = candidates(tokens[i]);
+            Arrays.fill(next, Double.NaN);
+            reachedSize = 0;
+            int offset = i * vv;
+            for (int a = 0; a < activeSize; a++) {
+                int s = active[a], t1 = s / v, t2 = s % v;
+                for (int j = 0; j < k; j++) {
+                    int t3 = candidates[j], ns = t2 * v + t3;
+                    double score = delta[s] + logTri(s, t3) + logEmission[t3];
+                    if (Double.isNaN(next[ns])) {
+                        reached[reachedSize++] = ns;
+                    } else if (!(score > next[ns])) {
+                        continue;
+                    }
+                    next[ns] = score;
+                    back[offset + ns] = t1;
+                }
+            }
+            double[] scores = delta;
+            delta = next;
+            next = scores;
+            int[] states = active;
+            active = reached;
+            reached = states;
+            activeSize = reachedSize;
+            prune();
+        }
+
+        int best = -1;
+        double bestScore = 0.0;
+        for (int a = 0; a < activeSize; a++) {
+            int s = active[a];
+            double score = delta[s] + logTri(s, stop);
+            if (best < 0 || score > bestScore) {
+                best = s;
+                bestScore = score;
+            }
+        }
+
+        tags[n - 1] = best % v;
+        if (n > 1) tags[n - 2] = best / v;
+        for (int i = n - 1; i >= 2; i--) {
+            tags[i - 2] = back[i * vv + tags[i - 1] * v + tags[i]];
+        }
+
+        return bestScore;
+    }
+
+    /**
+     * Drops active states out of the beam
+     */
+    protected void prune()
+    {
+        if (logBeam == Double.POSITIVE_INFINITY) return;
+        double best = Double.NEGATIVE_INFINITY;
+        for (int a = 0; a < activeSize; a++) {
+            best = Math.max(best, delta[active[a]]);
+        }
+        if (best == Double.NEGATIVE_INFINITY) return;
+
+        int kept = 0;
+        for (int a = 0; a < activeSize; a++) {
+            if (delta[active[a]] >= best - logBeam) active[kept++] = active[a];
+        }
+        activeSize = kept;
+    }
+
+    /**
+     * Resolves tags a token may take with their emission log probabilities
+     *
+     * @param word Token
+     * @return number of candidate tags
+     */
+    protected int candidates(String word)
+    {
+        token.set(word);
+        int k = 0;
+        for (int t = 0; t < v; t++) {
+            if (t == start || t == stop || dictionaryTags[t] < 0) continue;
+            double p = td.emission(token, dictionaryTags[t]);
+            if (p > 0) {
+                logEmission[t] = Math.log(p);
+                candidates[k++] = t;
+            }
+        }
+        if (k > 0) return k;
+
+        for (int t = 0; t < v; t++) {
+            if (t == start || t == stop) continue;
+            logEmission[t] = 0.0;
+            candidates[k++] = t;
+        }
+
+        return k;
+    }
+
+    /**
+     * Tags token file, printing token\ttag lines with an empty line after each sentence
+     *
+     * @param inputFile File with tokens to tag
+     * @param out Output
+     * @return number of tokens and number of tokens with matching gold tag
+     * @throws IOException
+     */
+    public long[] tagFile(String inputFile, PrintWriter out) throws IOException
+    {
+        long[] counts = new long[2];
+        String[] tokens = new String[64], gold = new String[64];
+        int[] tags = new int[64];
+        int n = 0;
+        String line;
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(inputFile), StandardCharsets.UTF_8))) {
+            while (true) {
+                line = br.readLine();
+                if (line == null || line.equals("")) {
+                    if (n > 0) {
+                        tag(tokens, n, tags);
+                        for (int i = 0; i < n; i++) {
+                            String t = tag(tags[i]);
+                            out.print(tokens[i]);
+                            out.print('\t');
+                            out.println(t);
+                            if (gold[i] != null && gold[i].equals(t)) counts[1]++;
+                        }
+                        out.println();
+                        counts[0] += n;
+                        n = 0;
+                    }
+                    if (line == null) break;
+                    continue;
+                }
+                if (n == tokens.length) {
+                    tokens = Arrays.copyOf(tokens, 2 * n);
+                    gold = Arrays.copyOf(gold, 2 * n);
+                    tags = new int[2 * n];
+                }
+                int tab = line.indexOf('\t');
+                tokens[n] = tab < 0 ? line : line.substring(0, tab);
+                gold[n] = tab < 0 ? null : line.substring(tab + 1);
+                n++;
+            }
+        }
+
+        return counts;
+    }
+
+    /**
+     * Trains or loads the model and tags token file
+     *
+     * @param args Options, training or model file, file with tokens to tag
+     */
+    public static void main(String[] args) {
+
+        String modelFile = null;
+        double beam = 1000;
+        int i = 0;
+        for (; i < args.length - 1 && args[i].startsWith("-"); i += 2) {
+            switch (args[i]) {
+                case "-model": modelFile = args[i + 1]; break;
+                case "-beam": beam = Double.parseDouble(args[i + 1]); break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        NGramCollector tnc = new NGramCollector();
+        TagDictionary td = new TagDictionary();
+
+        TopScored top = new TopScored();
+        if (modelFile != null) {
+            top.load(modelFile, tnc, td);
+        } else {
+            top.collect(args[i++], new NGramCollector(), tnc, td);
+        }
+
+        Tagger tagger = new Tagger(tnc, td, beam);
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16));
+        try {
+            long time = System.nanoTime();
+            long[] counts = tagger.tagFile(args[i], out);
+            out.flush();
+            time = System.nanoTime() - time;
+            System.err.println("Tagged " + counts[0] + " tokens in " + time / 1000000 + " ms"
+                    + (counts[1] > 0 ? ", accuracy " + (double) counts[1] / counts[0] : ""));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println(e.toString());
+        }
+    }
+
+}
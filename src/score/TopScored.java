@@ -2,19 +2,73 @@ package score;
 
 /***********************************************************************************
  * Execution:
- * java score.TopScored [file to extract features from] [file with phrases to score]
+ * java score.TopScored [options] [file to extract features from] [file with phrases to score]
+ * java score.TopScored [options] -model [model file] [file with phrases to score]
+ *
+ * Options:
+ * -save [model file]   save the trained model for later runs
+ * -update [file]       absorb more tagged sentences into the trained or loaded model
+ * -threads [count]     number of training and scoring threads (default: available processors)
+ * -cache [size]        cache suffix lookups of up to size unknown tokens, print cache counters to stderr
+ * -n [count]           number of phrases to print (default 500)
+ * -top                 print the highest-scored phrases instead of the lowest-scored ones
+ * -ranges              rank (score, offset, length) of phrases instead of phrases, re-read printed ones from the file
+ * -out [file]          write phrases to file instead of standard output
+ * -format [name]       output format: tsv (default), scored (tsv with a score line per phrase) or jsonl
+ * -above [score]       instead of ranking, stream every phrase scored at or above score, in file order
+ * -below [score]       instead of ranking, stream every phrase scored at or below score, in file order
+ * -memo [size]         reuse scores of up to size distinct phrases for repeated phrases, print cache counters to stderr
+ * -collapse            rank repeated phrases once, at their first occurrence (default: keep every occurrence)
+ * -near [similarity]   skip phrases whose tokens are near duplicates of an earlier phrase, print counters to stderr
+ * -window [count]      number of earlier phrases -near compares with (default 262144)
+ * -quantiles           print score percentiles and a histogram of log10(score) to stderr
+ * -band [from] [to]    instead of ranking, stream phrases scored between the from and to percentiles, in file order
+ * -metrics [format]    print stage timings, counters and index sizes to stderr at exit: text or json
+ * -sample [seconds]    print phrases and tokens scored so far and their rates to stderr every seconds
  *
  * ********************************************************************************/
 
 import algorithms.MinPQ;
 import algorithms.MaxPQ;
+import algorithms.MinHashLSH;
+import algorithms.QuantileSketch;
+import algorithms.ScoreCache;
+import algorithms.ScoredRangePQ;
+import in_out.PhraseReader;
+import features.ModelFile;
 import features.NGramCollector;
 import features.TagDictionary;
+import utils.Metrics;
 
 import java.io.BufferedReader;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  *  The <tt>TopScored</tt> class represents a client that scores
@@ -25,90 +79,762 @@ import java.io.InputStreamReader;
  */
 public class TopScored {
 
+    /**
+     * Top order: equally scored phrases rank lower the later they come, so the earliest are kept
+     */
+    protected static final Comparator<ScoredTaggedPhrase> TOP_ORDER = new Comparator<ScoredTaggedPhrase>() {
+        public int compare(ScoredTaggedPhrase a, ScoredTaggedPhrase b) {
+            int c = a.compareTo(b);
+            return c != 0 ? c : Long.compare(b.seq, a.seq);
+        }
+    };
+
+    /**
+     * Bottom order: equally scored phrases rank higher the later they come, so the earliest are kept
+     */
+    protected static final Comparator<ScoredTaggedPhrase> BOTTOM_ORDER = new Comparator<ScoredTaggedPhrase>() {
+        public int compare(ScoredTaggedPhrase a, ScoredTaggedPhrase b) {
+            int c = a.compareTo(b);
+            return c != 0 ? c : Long.compare(a.seq, b.seq);
+        }
+    };
+
+    /**
+     * Relative accuracy of score quantiles
+     */
+    protected static final double SKETCH_ACCURACY = 0.01;
+
     protected int N = 500;
+    protected int threads = Runtime.getRuntime().availableProcessors();
+    protected int batchSize = 256; // phrases per scoring batch
     protected MinPQ<ScoredTaggedPhrase> pqT;
     protected MaxPQ<ScoredTaggedPhrase> pqB;
+    protected boolean keepTop = true;        // rank high-scored phrases
+    protected boolean keepBottom = true;     // rank low-scored phrases
+
+    protected boolean ranges;                // rank phrase ranges instead of phrases
+    protected ScoredRangePQ rangesT, rangesB; // ranges of high- and low-scored phrases
+    protected String scoredFile;             // file the ranges point to
+
+    protected PhraseWriter stream;           // writer of streamed phrases, null to rank them
+    protected double above = Double.NaN;     // stream phrases scored at or above, NaN for none
+    protected double below = Double.NaN;     // stream phrases scored at or below, NaN for none
+    protected boolean within;                // stream phrases scored between above and below instead
+    protected long nextSeq;                  // first phrase of the next batch to stream
+    protected BlockingQueue<Batch> free;     // scored batches to reuse
+
+    protected ScoreCache memo;               // scores by phrase key, null to score every phrase
+    protected boolean collapse;              // rank equal phrases once
+    protected Set<ScoredTaggedPhrase.Key> keysT, keysB; // keys of ranked phrases when collapsing
+    protected MinHashLSH near;               // near-duplicate filter, null to score every phrase
+    protected QuantileSketch sketch;         // distribution of scores, null for none
+    protected Metrics metrics;               // stage timings and counters, null for none
 
     public TopScored() {
-        pqT = new MinPQ<>();
-        pqB = new MaxPQ<>();
+        pqT = new MinPQ<>(TOP_ORDER);
+        pqB = new MaxPQ<>(BOTTOM_ORDER);
     }
 
     /**
-     * Collect NGrams from input file
+     * Collect NGrams from input file.
+     * The file is split into shards at phrase boundaries, shards are collected
+     * in parallel and the partial collectors are merged in file order.
+     * Counts are smoothed in the same pool of threads.
      *
      * @param inputFile Input file
      * @param nc Token NGram collector
      * @param tnc Tag NGram collector
      */
     public void collect(String inputFile, NGramCollector nc, NGramCollector tnc, TagDictionary td) {
-        String line;
-        BufferedReader br;
         try {
-            br = new BufferedReader(new InputStreamReader(new FileInputStream(inputFile), "utf8"));
+            long t = System.nanoTime();
+            long[] bounds = shards(inputFile, threads);
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                Shard shard = pool.invoke(new CollectTask(inputFile, bounds, 0, bounds.length - 1));
+                tnc.merge(shard.tnc);
+                td.merge(shard.td);
+                t = time(Metrics.Stage.TRAIN, t);
 
-            ScoredTaggedPhrase sp = new ScoredTaggedPhrase();
+                td.buildSuffixIndex(tnc.suffixSmoothingFactor());
+                t = time(Metrics.Stage.SUFFIX, t);
+                nc.smoothTrigramCounts(pool);
+                tnc.smoothTrigramCounts(pool);
+                t = time(Metrics.Stage.SMOOTH, t);
+            } finally {
+                pool.shutdown();
+            }
+            nc.buildSuffixIndex();
+            t = time(Metrics.Stage.SUFFIX, t);
+            tnc.compile();
+            time(Metrics.Stage.SMOOTH, t);
 
-            while ((line = br.readLine()) != null) {
-                if (line.equals("")) {
-                    sp.add(tnc, td);
-                    sp = new ScoredTaggedPhrase();
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+            System.out.println(e.toString());
+        }
+    }
+
+    /**
+     * Loads trained model instead of collecting NGrams
+     *
+     * @param modelFile Model file
+     * @param tnc Tag NGram collector
+     * @param td Tag dictionary
+     */
+    public void load(String modelFile, NGramCollector tnc, TagDictionary td) {
+        try {
+            ModelFile.load(modelFile, tnc, td);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println(e.toString());
+        }
+    }
+
+    /**
+     * Adds tagged sentences to a trained model, updating smoothing
+     * factors and suffix index online instead of retraining
+     *
+     * @param inputFile Input file
+     * @param tnc Tag NGram collector
+     * @param td Tag dictionary
+     */
+    public void update(String inputFile, NGramCollector tnc, TagDictionary td) {
+        tnc.enableOnlineUpdates();
+        td.enableOnlineUpdates();
+        try {
+            long t = System.nanoTime();
+            collect(inputFile, 0, Long.MAX_VALUE, true, tnc, td);
+            t = time(Metrics.Stage.TRAIN, t);
+            tnc.compile();
+            time(Metrics.Stage.SMOOTH, t);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println(e.toString());
+        }
+    }
+
+    /**
+     * Saves trained model
+     *
+     * @param modelFile Model file
+     * @param tnc Tag NGram collector
+     * @param td Tag dictionary
+     */
+    public void save(String modelFile, NGramCollector tnc, TagDictionary td) {
+        try {
+            ModelFile.save(modelFile, tnc, td);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println(e.toString());
+        }
+    }
+
+    /**
+     * Records time spent in stage since start, if metrics are on
+     *
+     * @param stage Stage
+     * @param start Stage start, from System.nanoTime()
+     * @return now, the start of the next stage
+     */
+    protected long time(Metrics.Stage stage, long start) {
+        long now = System.nanoTime();
+        if (metrics != null) metrics.time(stage, now - start);
+
+        return now;
+    }
+
+    /**
+     * Records sizes of the trained indexes, if metrics are on
+     *
+     * @param tnc Tag NGram collector
+     * @param td Tag dictionary
+     */
+    public void sizes(NGramCollector tnc, TagDictionary td) {
+        if (metrics == null) return;
+        metrics.size("tags", tnc.size());
+        metrics.size("tag_grams", tnc.gramCount());
+        metrics.size("dictionary_tokens", td.size());
+        metrics.size("dictionary_suffixes", td.suffixSize());
+    }
+
+    /**
+     * Collect NGrams from a shard of input file
+     *
+     * @param inputFile Input file
+     * @param from Shard start offset
+     * @param to Shard end offset
+     * @param last Whether shard ends the file
+     * @param tnc Tag NGram collector
+     * @param td Tag dictionary
+     * @throws IOException
+     */
+    protected void collect(String inputFile, long from, long to, boolean last, NGramCollector tnc, TagDictionary td) throws IOException {
+        PhraseBuffer phrase = new PhraseBuffer();
+
+        try (PhraseReader in = new PhraseReader(inputFile, from, to)) {
+            while (in.next()) {
+                if (in.isEmpty()) {
+                    phrase.add(tnc, td);
+                    phrase.clear();
                     continue;
                 }
-                sp.enqueue(line);
+                phrase.add(in.token(), in.tokenId(), in.tag(), in.tagId(), in.lineStart());
             }
+        }
 
-            br.close();
+        if (last && phrase.size() > 0)
+            phrase.add(tnc, td);
+    }
 
-            if (sp.tokens.size() > 0)
-                sp.add(tnc, td);
+    /**
+     * Splits input file into shards that start right after an empty line
+     *
+     * @param inputFile Input file
+     * @param count Desired number of shards
+     * @return shard offsets, first is 0 and last is the file size
+     * @throws IOException
+     */
+    protected long[] shards(String inputFile, int count) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long[] bounds = new long[count + 1];
+            int k = 1;
+            for (int i = 1; i < count; i++) {
+                long bound = phraseBoundary(channel, Math.max(size / count * i, bounds[k - 1]));
+                if (bound > bounds[k - 1] && bound < size) bounds[k++] = bound;
+            }
+            bounds[k++] = size;
 
-            td.buildSuffixIndex(tnc.suffixSmoothingFactor());
-            nc.smoothTrigramCounts();
-            tnc.smoothTrigramCounts();
-            nc.buildSuffixIndex();
+            return Arrays.copyOf(bounds, k);
+        }
+    }
+
+    /**
+     * Finds the first offset after an empty line
+     *
+     * @param channel Input file channel
+     * @param from Offset to search from
+     * @return offset, the file size if there is no empty line
+     * @throws IOException
+     */
+    protected long phraseBoundary(FileChannel channel, long from) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        long position = Math.max(from - 1, 0);
+        boolean lineStart = position == 0, cr = false;
+        while (channel.read(buffer, position) > 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                position++;
+                if (b == '\n' && (lineStart || cr)) return position;
+                cr = b == '\r' && lineStart;
+                lineStart = b == '\n';
+            }
+            buffer.clear();
+        }
+
+        return channel.size();
+    }
+    /**
+     * Scores phrases from input file.
+     * The reader splits the file into batches of phrases, a pool of workers
+     * scores the batches and ranks them into their own top and bottom lists,
+     * the lists are merged at the end. Ties are broken by phrase number,
+     * so the result does not depend on the number of threads. When collapsing,
+     * equal phrases are ranked once, at their first occurrence. When sketching,
+     * every phrase is scored in full and its score is added to the sketch.
+     *
+     * @param inputFile Input file
+     * @param tnc Tag NGram collector
+     * @param td Tag dictionary
+     */
+    public void score(String inputFile, NGramCollector tnc, TagDictionary td) {
+        long started = System.nanoTime();
+        scoredFile = inputFile;
+        nextSeq = 0;
+        if (collapse && (ranges || stream != null))
+            throw new IllegalArgumentException("Equal phrases are only collapsed when ranking phrases");
+        if (ranges && stream == null) {
+            if (keepTop) rangesT = new ScoredRangePQ(N, true);
+            if (keepBottom) rangesB = new ScoredRangePQ(N, false);
+        }
+        BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(2 * threads);
+        free = new ArrayBlockingQueue<>(3 * threads + 1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<ScoreWorker>> workers = new ArrayList<>();
+        try {
+            for (int i = 0; i < threads; i++) {
+                workers.add(pool.submit(new ScoreWorker(queue, tnc, td)));
+            }
+            try {
+                read(inputFile, queue);
+            } finally {
+                for (int i = 0; i < threads; i++) {
+                    queue.put(Batch.END);
+                }
+            }
+
+            RuntimeException failure = null;
+            List<ScoredTaggedPhrase> listT = new ArrayList<>(), listB = new ArrayList<>();
+            for (Future<ScoreWorker> future : workers) {
+                ScoreWorker worker = future.get();
+                if (worker.failure != null && failure == null) failure = worker.failure;
+                if (sketch != null) sketch.merge(worker.top.sketch);
+                if (stream != null) continue;
+                if (ranges) {
+                    if (keepTop) rangesT.offerAll(worker.top.rangesT);
+                    if (keepBottom) rangesB.offerAll(worker.top.rangesB);
+                    continue;
+                }
+                for (ScoredTaggedPhrase sp : worker.top.pqT) {
+                    listT.add(sp);
+                }
+                for (ScoredTaggedPhrase sp : worker.top.pqB) {
+                    listB.add(sp);
+                }
+            }
+            if (failure != null) throw failure;
+
+            long t = System.nanoTime();
+            // collapsed lists are merged best first, so the first occurrence of a phrase is kept
+            if (collapse) {
+                listT.sort(TOP_ORDER.reversed());
+                listB.sort(BOTTOM_ORDER);
+            }
+            for (ScoredTaggedPhrase sp : listT) {
+                rankTop(sp);
+            }
+            for (ScoredTaggedPhrase sp : listB) {
+                rankBottom(sp);
+            }
+            time(Metrics.Stage.RANK, t);
 
         } catch (IOException e) {
             e.printStackTrace();
             System.out.println(e.toString());
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            pool.shutdown();
+            if (metrics != null) metrics.count(Metrics.Counter.SCORING_NANOS, System.nanoTime() - started);
         }
     }
 
     /**
-     * Scores phrases from input file
+     * Streams phrases scored at or above or at or below the cutoffs to the writer
+     * while scoring, in file order, without ranking. Matches are written batch by
+     * batch as soon as the batch and all batches before it are scored, one
+     * flush per batch with matches. Memory does not grow
+     * with the number of phrases, only with the vocabulary the reader interns,
+     * up to a million distinct tokens and tags.
      *
      * @param inputFile Input file
      * @param tnc Tag NGram collector
+     * @param td Tag dictionary
+     * @param above Lower cutoff, NaN for none
+     * @param below Upper cutoff, NaN for none
+     * @param out Phrase writer
      */
-    public void score(String inputFile, NGramCollector tnc, TagDictionary td) {
-        String line;
-        BufferedReader br;
-        ScoredTaggedPhrase sp;
+    public void stream(String inputFile, NGramCollector tnc, TagDictionary td, double above, double below, PhraseWriter out) {
+        this.above = above;
+        this.below = below;
+        stream = out;
+        try {
+            score(inputFile, tnc, td);
+        } finally {
+            stream = null;
+        }
+    }
+
+    /**
+     * Streams phrases scored between two quantiles of the score distribution
+     * to the writer, in file order. A first pass over the input only sketches
+     * the distribution; the second one scores the memory-mapped file again and
+     * streams the phrases between the quantile scores, within the sketch accuracy.
+     *
+     * @param inputFile Input file
+     * @param tnc Tag NGram collector
+     * @param td Tag dictionary
+     * @param from Lower quantile, between 0 and 1
+     * @param to Upper quantile, between 0 and 1
+     * @param out Phrase writer
+     */
+    public void band(String inputFile, NGramCollector tnc, TagDictionary td, double from, double to, PhraseWriter out) {
+        if (sketch == null) sketch = new QuantileSketch(SKETCH_ACCURACY);
+        boolean top = keepTop, bottom = keepBottom;
+        keepTop = keepBottom = false;
         try {
-            br = new BufferedReader(new InputStreamReader(new FileInputStream(inputFile), "utf8"));
+            score(inputFile, tnc, td);
+        } finally {
+            keepTop = top;
+            keepBottom = bottom;
+        }
+
+        QuantileSketch scores = sketch;
+        sketch = null;
+        within = true;
+        if (near != null) near.clear();
+        try {
+            stream(inputFile, tnc, td, scores.quantile(from), scores.quantile(to), out);
+        } finally {
+            sketch = scores;
+            within = false;
+        }
+    }
+
+    /**
+     * Does scored phrase pass a stream cutoff?
+     *
+     * @param p scored phrase
+     * @return true if phrase is to be streamed
+     */
+    protected boolean passes(PhraseBuffer p) {
+        if (within) return p.score >= above && p.score <= below;
+        return p.score >= above || p.score <= below;
+    }
+
+    /**
+     * Prints the score distribution to stderr: percentiles,
+     * and a histogram of log10(score) in up to 20 bins of whole decades
+     */
+    public void printDistribution() {
+        if (sketch == null || sketch.count() == 0) return;
+        StringBuilder sb = new StringBuilder();
+        sb.append("Scores: count=").append(sketch.count()).append(" zero=").append(sketch.nonPositive())
+                .append(" min=").append(number(sketch.min())).append(" max=").append(number(sketch.max())).append('\n');
+        sb.append("Percentiles:");
+        for (int p : new int[] {0, 1, 5, 10, 25, 50, 75, 90, 95, 99, 100}) {
+            sb.append(" p").append(p).append('=').append(number(sketch.quantile(p / 100.0)));
+        }
+        sb.append('\n');
+
+        if (sketch.count() > sketch.nonPositive()) {
+            int lo = (int) Math.floor(Math.log10(sketch.minPositive()));
+            int hi = (int) Math.floor(Math.log10(sketch.max())) + 1;
+            int width = (hi - lo + 19) / 20;
+            int bins = (hi - lo + width - 1) / width;
+            long[] counts = new long[bins];
+            long most = 0;
+            for (int b = 0; b < bins; b++) {
+                counts[b] = sketch.rank(Math.pow(10, lo + (b + 1) * width)) - sketch.rank(Math.pow(10, lo + b * width));
+                most = Math.max(most, counts[b]);
+            }
+            sb.append("Histogram of log10(score):\n");
+            if (sketch.nonPositive() > 0) {
+                sb.append(String.format(Locale.ROOT, "  %-12s %10d%n", "zero", sketch.nonPositive()));
+            }
+            for (int b = 0; b < bins; b++) {
+                sb.append(String.format(Locale.ROOT, "  [%4d, %4d) %10d ", lo + b * width, lo + (b + 1) * width, counts[b]));
+                for (long i = 0, bar = most == 0 ? 0 : (counts[b] * 50 + most - 1) / most; i < bar; i++) {
+                    sb.append('#');
+                }
+                sb.append('\n');
+            }
+        }
+        System.err.print(sb);
+    }
+
+    /**
+     * Formats a score for the distribution report
+     *
+     * @param x score
+     * @return score with 4 significant digits
+     */
+    protected static String number(double x) {
+        return String.format(Locale.ROOT, "%.4g", x);
+    }
+
+    /**
+     * Writes matches of a batch once all preceding batches are written,
+     * flushing them so that they show up while later batches are scored
+     *
+     * @param batch Scored batch
+     * @param text Formatted matches
+     * @throws InterruptedException
+     */
+    protected synchronized void emit(Batch batch, CharSequence text) throws InterruptedException {
+        while (batch.seq != nextSeq) wait();
+        if (text.length() > 0) {
+            stream.write(text);
+            stream.flush();
+        }
+        nextSeq = batch.seq + batchSize;
+        notifyAll();
+    }
+
+    /**
+     * Reads input file into batches of token/tag pairs with their ids and
+     * line offsets, each batch but the last one ends with an empty line.
+     * Phrases the near-duplicate filter turns down are left out of the batches
+     * and get no phrase number, so they are neither scored nor ranked.
+     *
+     * @param inputFile Input file
+     * @param queue Batch queue
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected void read(String inputFile, BlockingQueue<Batch> queue) throws IOException, InterruptedException {
+        long seq = 0;
+        int start = 0; // first line of the phrase in batch
+        Batch batch = batch(seq);
+        long t = System.nanoTime();
+        try (PhraseReader in = new PhraseReader(inputFile)) {
+            while (in.next()) {
+                batch.add(in.token(), in.tokenId(), in.tag(), in.tagId(), in.lineStart());
+                if (!in.isEmpty()) continue;
+                if (near != null && !near.add(batch.tokenIds, batch.tokens, start, batch.size - 1)) {
+                    batch.size = start;
+                    continue;
+                }
+                if (++seq - batch.seq == batchSize) {
+                    time(Metrics.Stage.READ, t);
+                    queue.put(batch);
+                    batch = batch(seq);
+                    t = System.nanoTime();
+                }
+                start = batch.size;
+            }
+            batch.end = in.lineEnd();
+        }
+        batch.last = near == null || start == batch.size || near.add(batch.tokenIds, batch.tokens, start, batch.size);
+        if (!batch.last) batch.size = start;
+        time(Metrics.Stage.READ, t);
+        queue.put(batch);
+    }
+
+    /**
+     * Takes a scored batch to reuse, or a new one
+     *
+     * @param seq Number of the first phrase
+     * @return empty batch
+     */
+    protected Batch batch(long seq) {
+        Batch batch = free == null ? null : free.poll();
+        if (batch == null) return new Batch(seq);
+        batch.seq = seq;
+        batch.size = 0;
+        batch.last = false;
 
-            sp = new ScoredTaggedPhrase();
+        return batch;
+    }
+
+    /**
+     * Token/tag pairs of consecutive phrases, null pair for an empty line
+     */
+    protected static class Batch {
+        protected static final Batch END = new Batch(-1);
+
+        protected long seq; // number of the first phrase
+        protected String[] tokens = new String[1024];
+        protected String[] tags = new String[1024];
+        protected int[] tokenIds = new int[1024];
+        protected int[] tagIds = new int[1024];
+        protected long[] offsets = new long[1024]; // line offsets, an empty line ends the phrase before it
+        protected int size; // number of lines
+        protected long end; // end of the last line
+        protected boolean last; // a phrase not followed by an empty line ends the file
+
+        protected Batch(long seq) {
+            this.seq = seq;
+        }
+
+        /**
+         * Adds line
+         *
+         * @param token Token, null for an empty line
+         * @param tokenId Token id, -1 for an empty line or none
+         * @param tag Tag, null for an empty line
+         * @param tagId Tag id, -1 for an empty line or none
+         * @param offset Line offset
+         */
+        protected void add(String token, int tokenId, String tag, int tagId, long offset) {
+            if (size == tokens.length) {
+                tokens = Arrays.copyOf(tokens, 2 * size);
+                tags = Arrays.copyOf(tags, 2 * size);
+                tokenIds = Arrays.copyOf(tokenIds, 2 * size);
+                tagIds = Arrays.copyOf(tagIds, 2 * size);
+                offsets = Arrays.copyOf(offsets, 2 * size);
+            }
+            tokens[size] = token;
+            tags[size] = tag;
+            tokenIds[size] = tokenId;
+            tagIds[size] = tagId;
+            offsets[size++] = offset;
+        }
+    }
+
+    /**
+     * Scores batches until the end marker, ranking phrases into its own lists
+     * or streaming them. After a failure the worker keeps draining the queue
+     * so the reader never blocks, and streams nothing more.
+     */
+    protected class ScoreWorker implements Callable<ScoreWorker> {
+        protected BlockingQueue<Batch> queue;
+        protected NGramCollector tnc;
+        protected TagDictionary td;
+        protected PhraseScorer scorer;
+        protected PhraseBuffer phrase = new PhraseBuffer();
+        protected TopScored top = new TopScored();
+        protected RuntimeException failure;
+        protected StringBuilder streamed = new StringBuilder(); // matches of the current batch
+        protected long phrases, tokens, rankNanos;             // scored and ranking time since the last report
+        protected Metrics.Timer ranking = new Metrics.Timer(); // ranking times since the last report
+        protected long[] emissions = new long[3];              // emissions of the scorer at the last report
+
+        protected ScoreWorker(BlockingQueue<Batch> queue, NGramCollector tnc, TagDictionary td) {
+            this.queue = queue;
+            this.tnc = tnc;
+            this.td = td;
+            scorer = new PhraseScorer(tnc, td);
+            top.N = N;
+            top.keepTop = keepTop;
+            top.keepBottom = keepBottom;
+            top.collapse = collapse;
+            if (sketch != null) top.sketch = new QuantileSketch(sketch.accuracy());
+            if (ranges && stream == null) {
+                if (keepTop) top.rangesT = new ScoredRangePQ(N, true);
+                if (keepBottom) top.rangesB = new ScoredRangePQ(N, false);
+            }
+        }
+
+        public ScoreWorker call() throws InterruptedException {
+            Batch batch;
+            while ((batch = queue.take()) != Batch.END) {
+                streamed.setLength(0);
+                if (failure == null) {
+                    long start = System.nanoTime();
+                    try {
+                        score(batch);
+                    } catch (RuntimeException e) {
+                        failure = e;
+                        streamed.setLength(0);
+                    }
+                    if (metrics != null) report(System.nanoTime() - start);
+                }
+                if (stream != null) emit(batch, streamed);
+                free.offer(batch);
+            }
+
+            return this;
+        }
 
-            while ((line = br.readLine()) != null) {
-                if (line.equals("")) {
-                    sp.score(tnc, td);
-                    rank(sp);
-                    sp = new ScoredTaggedPhrase();
+        /**
+         * Scores phrases of batch
+         *
+         * @param batch Batch
+         */
+        protected void score(Batch batch) {
+            long seq = batch.seq;
+            phrase.clear();
+            phrase.seq = seq++;
+            for (int i = 0; i < batch.size; i++) {
+                if (batch.tokens[i] == null) {
+                    score(phrase, batch.offsets[i]);
+                    phrase.clear();
+                    phrase.seq = seq++;
                     continue;
                 }
-                sp.enqueue(line);
+                phrase.add(batch.tokens[i], batch.tokenIds[i], batch.tags[i], batch.tagIds[i], batch.offsets[i]);
             }
 
-            br.close();
+            if (batch.last && phrase.size() > 0) {
+                score(phrase, batch.end);
+            }
+        }
 
-            if (sp.tokens.size() > 0) {
-                sp.score(tnc, td);
-                rank(sp);
+        /**
+         * Scores phrase, sketches its score and ranks it
+         * unless it scores below floor
+         *
+         * @param p Phrase
+         * @param end Phrase end offset
+         */
+        protected void score(PhraseBuffer p, long end) {
+            boolean passed = p.score(scorer, memo, floor());
+            phrases++;
+            tokens += p.size() - 2;
+            if (!passed) return;
+            if (top.sketch != null) top.sketch.add(p.score);
+            if (metrics == null) {
+                rank(p, end);
+                return;
             }
+            long t = System.nanoTime();
+            rank(p, end);
+            t = System.nanoTime() - t;
+            rankNanos += t;
+            ranking.record(t);
+        }
 
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.out.println(e.toString());
+        /**
+         * Adds batch scoring time, ranking times and counters to metrics
+         *
+         * @param nanos Batch time, ranking included
+         */
+        protected void report(long nanos) {
+            synchronized (metrics) {
+                metrics.time(Metrics.Stage.SCORE, nanos - rankNanos);
+                metrics.time(Metrics.Stage.RANK, ranking);
+                metrics.count(Metrics.Counter.PHRASES, phrases);
+                metrics.count(Metrics.Counter.TOKENS, tokens);
+                metrics.count(Metrics.Counter.EMISSIONS_KNOWN, delta(TagDictionary.KNOWN));
+                metrics.count(Metrics.Counter.EMISSIONS_SUFFIX, delta(TagDictionary.SUFFIX));
+                metrics.count(Metrics.Counter.EMISSIONS_ZERO, delta(TagDictionary.ZERO));
+            }
+            ranking.clear();
+            phrases = tokens = rankNanos = 0;
+        }
+
+        /**
+         * Emissions of the scorer from a source since the last report
+         *
+         * @param source TagDictionary.KNOWN, SUFFIX or ZERO
+         * @return number of emissions
+         */
+        protected long delta(int source) {
+            long delta = scorer.emissions(source) - emissions[source];
+            emissions[source] = scorer.emissions(source);
+
+            return delta;
+        }
+
+        /**
+         * Score a phrase needs to reach to be streamed or ranked. Scores only
+         * decrease as phrases are scored, so there is one while the phrase can
+         * only enter the top list, or only pass the lower stream cutoff.
+         * Sketching needs every score in full.
+         *
+         * @return score bound, negative infinity if any phrase may qualify
+         */
+        protected double floor() {
+            if (sketch != null) return Double.NEGATIVE_INFINITY;
+            if (stream != null) return within || Double.isNaN(below) && !Double.isNaN(above) ? above : Double.NEGATIVE_INFINITY;
+            if (keepBottom || !keepTop) return Double.NEGATIVE_INFINITY;
+            if (ranges) return top.rangesT.isFull() ? top.rangesT.worst() : Double.NEGATIVE_INFINITY;
+
+            return top.pqT.size() == N ? top.pqT.min().score : Double.NEGATIVE_INFINITY;
+        }
+
+        /**
+         * Ranks scored phrase, or its byte range in ranges mode,
+         * or formats it for streaming if it passes a cutoff
+         *
+         * @param p Scored phrase
+         * @param end Phrase end offset
+         */
+        protected void rank(PhraseBuffer p, long end) {
+            if (stream != null) {
+                if (passes(p)) stream.format(p.toPhrase(), streamed);
+                return;
+            }
+            if (!ranges) {
+                top.rank(p);
+                return;
+            }
+            long start = p.start();
+            if (keepTop) top.rangesT.offer(p.score, start, (int) (end - start));
+            if (keepBottom) top.rangesB.offer(p.score, start, (int) (end - start));
         }
     }
 
@@ -123,25 +849,96 @@ public class TopScored {
         if (sp.tokens.size() == 0 || sp.tags.size() == 0)
             return;
 
-        double min = 0.0;
-        if (!pqT.isEmpty())
-            min = pqT.min().score;
+        if (keepTop) rankTop(sp);
+        if (keepBottom) rankBottom(sp);
+    }
+
+    /**
+     * Includes scored phrase buffer into top- and bottom- phrase lists
+     * if it ranks high or low enough, copying it only then
+     *
+     * @param p scored phrase
+     */
+    public void rank(PhraseBuffer p) {
+        ScoredTaggedPhrase sp = null;
+        if (keepTop && admitsTop(p.score, p.seq) && !ranked(keysT, p)) rankTop(sp = p.toPhrase());
+        if (keepBottom && admitsBottom(p.score, p.seq) && !ranked(keysB, p)) rankBottom(sp != null ? sp : p.toPhrase());
+    }
 
-        if (pqT.size() < N || sp.score > min) {
+    /**
+     * Is an equal phrase in the list already? Always false unless collapsing.
+     *
+     * @param keys Keys of the list
+     * @param p scored phrase
+     * @return true if phrase is to be skipped
+     */
+    protected boolean ranked(Set<ScoredTaggedPhrase.Key> keys, PhraseBuffer p) {
+        return collapse && keys != null && keys.contains(p.key());
+    }
 
+    /**
+     * Would phrase enter top- phrase list?
+     *
+     * @param score Phrase score
+     * @param seq Phrase number
+     * @return true if phrase ranks high enough
+     */
+    protected boolean admitsTop(double score, long seq) {
+        if (pqT.size() < N) return true;
+        ScoredTaggedPhrase min = pqT.min();
+        int c = Double.compare(score, min.score);
+
+        return c > 0 || c == 0 && seq < min.seq;
+    }
+
+    /**
+     * Would phrase enter bottom- phrase list?
+     *
+     * @param score Phrase score
+     * @param seq Phrase number
+     * @return true if phrase ranks low enough
+     */
+    protected boolean admitsBottom(double score, long seq) {
+        if (pqB.size() < N) return true;
+        ScoredTaggedPhrase max = pqB.max();
+        int c = Double.compare(score, max.score);
+
+        return c < 0 || c == 0 && seq < max.seq;
+    }
+
+    /**
+     * Includes phrase into top- phrase list if it ranks high enough
+     *
+     * @param sp scored phrase
+     */
+    protected void rankTop(ScoredTaggedPhrase sp) {
+        if (collapse && keysT == null) keysT = new HashSet<>();
+        if (collapse && keysT.contains(sp.key())) return;
+        if (pqT.size() < N || TOP_ORDER.compare(sp, pqT.min()) > 0) {
             pqT.insert(sp);
-            if (pqT.size() == N + 1)
-                pqT.delMin();
+            if (collapse) keysT.add(sp.key());
+            if (pqT.size() == N + 1) {
+                ScoredTaggedPhrase out = pqT.delMin();
+                if (collapse) keysT.remove(out.key());
+            }
         }
+    }
 
-        double max = Double.POSITIVE_INFINITY;
-        if (!pqB.isEmpty())
-            max = pqB.max().score;
-
-        if (pqB.size() < N || sp.score < max) {
+    /**
+     * Includes phrase into bottom- phrase list if it ranks low enough
+     *
+     * @param sp scored phrase
+     */
+    protected void rankBottom(ScoredTaggedPhrase sp) {
+        if (collapse && keysB == null) keysB = new HashSet<>();
+        if (collapse && keysB.contains(sp.key())) return;
+        if (pqB.size() < N || BOTTOM_ORDER.compare(sp, pqB.max()) < 0) {
             pqB.insert(sp);
-            if (pqB.size() == N + 1)
-                pqB.delMax();
+            if (collapse) keysB.add(sp.key());
+            if (pqB.size() == N + 1) {
+                ScoredTaggedPhrase out = pqB.delMax();
+                if (collapse) keysB.remove(out.key());
+            }
         }
     }
 
@@ -149,56 +946,276 @@ public class TopScored {
      * Prints <em>N</em> high-scored phrases
      */
     public void  printTop() {
-        for (ScoredTaggedPhrase ph : pqT) {
-            ph.print();
-            System.out.println();
-        }
+        PhraseWriter out = new PhraseWriter(System.out, PhraseWriter.Format.TSV);
+        printTop(out);
+        out.flush();
     }
 
     /**
      * Prints <em>N</em> low-scored phrases
      */
     public void printBottom() {
+        PhraseWriter out = new PhraseWriter(System.out, PhraseWriter.Format.TSV);
+        printBottom(out);
+        out.flush();
+    }
+
+    /**
+     * Writes <em>N</em> high-scored phrases
+     *
+     * @param out Phrase writer
+     */
+    public void printTop(PhraseWriter out) {
+        if (rangesT != null) {
+            print(rangesT, out);
+            return;
+        }
+        for (ScoredTaggedPhrase ph : pqT) {
+            out.write(ph);
+        }
+    }
+
+    /**
+     * Writes <em>N</em> low-scored phrases
+     *
+     * @param out Phrase writer
+     */
+    public void printBottom(PhraseWriter out) {
+        if (rangesB != null) {
+            print(rangesB, out);
+            return;
+        }
         for (ScoredTaggedPhrase ph : pqB) {
-            ph.print();
-            System.out.println();
+            out.write(ph);
         }
     }
 
     /**
-     * Shows memory usage
+     * Writes ranked phrases re-read from the scored file through a memory map,
+     * from the worst ranked to the best one like the phrase heaps do
      *
-     * @param rt Runtime object
+     * @param pq Ranked phrase ranges
+     * @param out Phrase writer
+     */
+    protected void print(ScoredRangePQ pq, PhraseWriter out) {
+        pq.sort();
+        try (FileChannel channel = FileChannel.open(Paths.get(scoredFile), StandardOpenOption.READ)) {
+            boolean whole = channel.size() <= Integer.MAX_VALUE;
+            MappedByteBuffer map = whole ? channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()) : null;
+            byte[] bytes = new byte[0];
+            String line;
+            for (int i = pq.size() - 1; i >= 0; i--) {
+                int length = pq.length(i);
+                if (bytes.length < length) bytes = new byte[Math.max(length, 2 * bytes.length)];
+                if (whole) {
+                    map.position((int) pq.offset(i));
+                    map.get(bytes, 0, length);
+                } else {
+                    channel.map(FileChannel.MapMode.READ_ONLY, pq.offset(i), length).get(bytes, 0, length);
+                }
+
+                ScoredTaggedPhrase sp = new ScoredTaggedPhrase();
+                BufferedReader br = new BufferedReader(new StringReader(new String(bytes, 0, length, StandardCharsets.UTF_8)));
+                while ((line = br.readLine()) != null) {
+                    sp.enqueue(line);
+                }
+                sp.score = pq.score(i);
+                out.write(sp);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println(e.toString());
+        }
+    }
+
+    /**
+     * Tag collector and dictionary of a shard
      */
-    protected static void showMemoryUsage(Runtime rt) {
-        long usedMB = (rt.totalMemory() - rt.freeMemory()) / 1024 / 1024;
-        System.out.println("Memory usage: " + usedMB + "Mb\n");
+    protected static class Shard {
+        protected NGramCollector tnc = new NGramCollector();
+        protected TagDictionary td = new TagDictionary();
+
+        /**
+         * Merges following shard into this one
+         *
+         * @param that Following shard
+         * @return this shard
+         */
+        protected Shard merge(Shard that) {
+            tnc.merge(that.tnc);
+            td.merge(that.td);
+
+            return this;
+        }
+    }
+
+    /**
+     * Collects shards lo..hi-1 splitting them in halves
+     */
+    protected class CollectTask extends RecursiveTask<Shard> {
+        private static final long serialVersionUID = 1L;
+
+        protected String inputFile;
+        protected long[] bounds;
+        protected int lo, hi;
+
+        protected CollectTask(String inputFile, long[] bounds, int lo, int hi) {
+            this.inputFile = inputFile;
+            this.bounds = bounds;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected Shard compute() {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                CollectTask left = new CollectTask(inputFile, bounds, lo, mid);
+                CollectTask right = new CollectTask(inputFile, bounds, mid, hi);
+                invokeAll(left, right);
+
+                return left.join().merge(right.join());
+            }
+
+            Shard shard = new Shard();
+            try {
+                collect(inputFile, bounds[lo], bounds[hi], hi == bounds.length - 1, shard.tnc, shard.td);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            return shard;
+        }
     }
 
     /**
-     * Start memory usage measures
+     * Prints a sample of metrics to stderr every period, from a daemon thread
      *
-     * @return Runtime object
+     * @param metrics Metrics
+     * @param seconds Period
+     * @return sampler to shut down
      */
-    protected static Runtime start()
-    {
-        System.gc();
-        return Runtime.getRuntime();
+    protected static ScheduledExecutorService sample(final Metrics metrics, int seconds) {
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "metrics sampler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sampler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                System.err.println("Sample: " + metrics.sample());
+            }
+        }, seconds, seconds, TimeUnit.SECONDS);
+
+        return sampler;
     }
 
     public static void main(String[] args) {
 
-        String trainingFile  = args[0];
-        String corpusFile  = args[1];
+        String modelFile = null, saveFile = null, updateFile = null, outFile = null;
+        PhraseWriter.Format format = PhraseWriter.Format.TSV;
+        int cacheSize = 0, memoSize = 0, threads = 0, count = 0;
+        double above = Double.NaN, below = Double.NaN;
+        int window = 1 << 18, sampleSeconds = 0;
+        String metricsFormat = null;
+        double similarity = Double.NaN, from = Double.NaN, to = Double.NaN;
+        boolean ranges = false, printTop = false, collapse = false, quantiles = false;
+        int i = 0;
+        for (; i < args.length - 1 && args[i].startsWith("-"); i++) {
+            switch (args[i]) {
+                case "-model": modelFile = args[++i]; break;
+                case "-save":  saveFile = args[++i]; break;
+                case "-update": updateFile = args[++i]; break;
+                case "-threads": threads = Integer.parseInt(args[++i]); break;
+                case "-cache": cacheSize = Integer.parseInt(args[++i]); break;
+                case "-n": count = Integer.parseInt(args[++i]); break;
+                case "-ranges": ranges = true; break;
+                case "-top": printTop = true; break;
+                case "-out": outFile = args[++i]; break;
+                case "-format": format = PhraseWriter.format(args[++i]); break;
+                case "-above": above = Double.parseDouble(args[++i]); break;
+                case "-below": below = Double.parseDouble(args[++i]); break;
+                case "-memo": memoSize = Integer.parseInt(args[++i]); break;
+                case "-collapse": collapse = true; break;
+                case "-near": similarity = Double.parseDouble(args[++i]); break;
+                case "-window": window = Integer.parseInt(args[++i]); break;
+                case "-quantiles": quantiles = true; break;
+                case "-band": from = Double.parseDouble(args[++i]); to = Double.parseDouble(args[++i]); break;
+                case "-metrics": metricsFormat = args[++i]; break;
+                case "-sample": sampleSeconds = Integer.parseInt(args[++i]); break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
 
         NGramCollector nc = new NGramCollector();
         NGramCollector tnc = new NGramCollector();
         TagDictionary td = new TagDictionary();
 
         TopScored top = new TopScored();
-        top.collect(trainingFile, nc, tnc, td);
-        top.score(corpusFile, tnc, td);
-        top.printBottom();
+        if (threads > 0) top.threads = threads;
+        if (count > 0) top.N = count;
+        top.ranges = ranges;
+        top.keepTop = printTop;
+        top.keepBottom = !printTop;
+        top.collapse = collapse;
+        if (memoSize > 0) top.memo = new ScoreCache(memoSize);
+        if (!Double.isNaN(similarity)) top.near = new MinHashLSH(window, similarity);
+        if (quantiles) top.sketch = new QuantileSketch(SKETCH_ACCURACY);
+        if (metricsFormat != null && !metricsFormat.equals("text") && !metricsFormat.equals("json"))
+            throw new IllegalArgumentException("Unknown metrics format: " + metricsFormat);
+        if (metricsFormat != null || sampleSeconds > 0) top.metrics = new Metrics();
+        ScheduledExecutorService sampler = sampleSeconds > 0 ? sample(top.metrics, sampleSeconds) : null;
+        boolean band = !Double.isNaN(from);
+        if (band && (!Double.isNaN(above) || !Double.isNaN(below)))
+            throw new IllegalArgumentException("-band does not go with -above or -below");
+        if (band && !(0 <= from && from <= to && to <= 100))
+            throw new IllegalArgumentException("Percentiles must be 0 <= from <= to <= 100");
+        if (modelFile != null) {
+            top.load(modelFile, tnc, td);
+        } else {
+            top.collect(args[i++], nc, tnc, td);
+        }
+        if (updateFile != null) {
+            top.update(updateFile, tnc, td);
+        }
+        if (saveFile != null) {
+            top.save(saveFile, tnc, td);
+        }
+        top.sizes(tnc, td);
+
+        String corpusFile = args[i];
+        td.enableSuffixCache(cacheSize);
+        PhraseWriter out = new PhraseWriter(outFile, format);
+        if (band) {
+            top.band(corpusFile, tnc, td, from / 100, to / 100, out);
+        } else if (!Double.isNaN(above) || !Double.isNaN(below)) {
+            top.stream(corpusFile, tnc, td, above, below, out);
+        } else {
+            top.score(corpusFile, tnc, td);
+            if (printTop) top.printTop(out);
+            else top.printBottom(out);
+        }
+        out.close();
+        if (td.suffixCache() != null) {
+            System.err.println("Suffix cache: " + td.suffixCache());
+        }
+        if (top.memo != null) {
+            System.err.println("Score cache: " + top.memo);
+        }
+        if (top.near != null) {
+            System.err.println("Near duplicates: " + top.near);
+        }
+        if (quantiles) {
+            top.printDistribution();
+        }
+        if (sampler != null) {
+            sampler.shutdownNow();
+        }
+        if (metricsFormat != null) {
+            System.err.println(metricsFormat.equals("json") ? top.metrics.toJson() : top.metrics.toText());
+        }
     }
 
 }
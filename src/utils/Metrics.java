@@ -0,0 +1,305 @@
+package utils;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ *  The <tt>Metrics</tt> class collects run metrics: time spent in each stage
+ *  of training and scoring with a latency histogram per stage, event counters,
+ *  and sizes of the trained indexes. Metrics are dumped as text or JSON, and
+ *  sampled as one line of counters and rates while a long run goes on.
+ *  All methods are synchronized; threads time their work in their own
+ *  {@link Timer} and merge it in batches.
+ *
+ *  @author Valeriya Slovikovskaya vslovik@gmail.com
+ */
+public class Metrics {
+
+    /**
+     * Timed stages: reading and parsing batches of phrases to score, counting
+     * n-grams of the training file, smoothing counts into scores, building
+     * suffix indexes, scoring phrases and ranking them
+     */
+    public enum Stage { READ, TRAIN, SMOOTH, SUFFIX, SCORE, RANK }
+
+    /**
+     * Counted events
+     */
+    public enum Counter { PHRASES, TOKENS, EMISSIONS_KNOWN, EMISSIONS_SUFFIX, EMISSIONS_ZERO, SCORING_NANOS }
+
+    protected final long started = System.nanoTime();
+    protected final Timer[] timers = new Timer[Stage.values().length];
+    protected final long[] counts = new long[Counter.values().length];
+    protected final Map<String, Long> sizes = new LinkedHashMap<>();
+
+    protected long sampled = started;           // time of the last sample
+    protected long sampledPhrases, sampledTokens; // counts at the last sample
+
+    /**
+     * Latency histogram of one stage: counts by duration in buckets of a
+     * quarter of a power of two nanoseconds, so durations are read within 25%.
+     * Not synchronized, meant for one thread at a time.
+     */
+    public static class Timer
+    {
+        protected static final int SUB = 4; // buckets per power of two
+
+        protected long count, total, max;
+        protected long[] buckets = new long[64 * SUB];
+
+        /**
+         * Records duration
+         *
+         * @param nanos Duration in nanoseconds
+         */
+        public void record(long nanos)
+        {
+            if (nanos < 0) nanos = 0;
+            count++;
+            total += nanos;
+            if (nanos > max) max = nanos;
+            buckets[bucket(nanos)]++;
+        }
+
+        /**
+         * Adds durations of another timer
+         *
+         * @param that Timer
+         */
+        public void merge(Timer that)
+        {
+            count += that.count;
+            total += that.total;
+            max = Math.max(max, that.max);
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] += that.buckets[i];
+            }
+        }
+
+        /**
+         * Forgets recorded durations
+         */
+        public void clear()
+        {
+            count = total = max = 0;
+            Arrays.fill(buckets, 0);
+        }
+
+        /**
+         * Gets duration at quantile, the upper bound of its bucket
+         *
+         * @param q Quantile, between 0 and 1
+         * @return duration in nanoseconds, 0 if nothing was recorded
+         */
+        public long quantile(double q)
+        {
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(q * count), seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) return Math.min(upper(i), max);
+            }
+
+            return max;
+        }
+
+        // bucket of duration: exact below SUB, then SUB buckets per power of two
+        private static int bucket(long nanos)
+        {
+            if (nanos < SUB) return (int) nanos;
+            int e = 63 - Long.numberOfLeadingZeros(nanos);
+            return SUB * (e - 1) + (int) ((nanos >>> (e - 2)) & (SUB - 1));
+        }
+
+        // greatest duration of bucket
+        private static long upper(int bucket)
+        {
+            if (bucket < SUB) return bucket;
+            int e = bucket / SUB + 1, sub = bucket % SUB;
+            return ((long) (SUB + sub + 1) << (e - 2)) - 1;
+        }
+    }
+
+    /**
+     * Metrics constructor
+     */
+    public Metrics()
+    {
+        for (int i = 0; i < timers.length; i++) {
+            timers[i] = new Timer();
+        }
+    }
+
+    /**
+     * Records time spent in stage
+     *
+     * @param stage Stage
+     * @param nanos Duration in nanoseconds
+     */
+    public synchronized void time(Stage stage, long nanos)
+    {
+        timers[stage.ordinal()].record(nanos);
+    }
+
+    /**
+     * Adds durations timed by a thread to stage
+     *
+     * @param stage Stage
+     * @param timer Timer
+     */
+    public synchronized void time(Stage stage, Timer timer)
+    {
+        timers[stage.ordinal()].merge(timer);
+    }
+
+    /**
+     * Adds to counter
+     *
+     * @param counter Counter
+     * @param n Number of events
+     */
+    public synchronized void count(Counter counter, long n)
+    {
+        counts[counter.ordinal()] += n;
+    }
+
+    /**
+     * Gets counter
+     *
+     * @param counter Counter
+     * @return number of events
+     */
+    public synchronized long count(Counter counter)
+    {
+        return counts[counter.ordinal()];
+    }
+
+    /**
+     * Sets size of an index
+     *
+     * @param name Index name
+     * @param size Number of entries
+     */
+    public synchronized void size(String name, long size)
+    {
+        sizes.put(name, size);
+    }
+
+    /**
+     * Samples counters: phrases and tokens scored so far
+     * and their rates since the previous sample
+     *
+     * @return one line of counters
+     */
+    public synchronized String sample()
+    {
+        long now = System.nanoTime();
+        long phrases = count(Counter.PHRASES), tokens = count(Counter.TOKENS);
+        double seconds = Math.max(now - sampled, 1) / 1e9;
+        String line = String.format(Locale.ROOT, "elapsed=%.1fs phrases=%d (%.0f/s) tokens=%d (%.0f/s) heap=%dMB",
+                (now - started) / 1e9, phrases, (phrases - sampledPhrases) / seconds,
+                tokens, (tokens - sampledTokens) / seconds, heapUsed() / 1024 / 1024);
+        sampled = now;
+        sampledPhrases = phrases;
+        sampledTokens = tokens;
+
+        return line;
+    }
+
+    /**
+     * Dumps metrics as text
+     *
+     * @return metrics, one table of stages and a line per group of counters
+     */
+    public synchronized String toText()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "Metrics: elapsed=%.3fs heap=%dMB%n",
+                (System.nanoTime() - started) / 1e9, heapUsed() / 1024 / 1024));
+        sb.append(String.format(Locale.ROOT, "  %-8s %10s %12s %10s %10s %10s %10s%n",
+                "stage", "count", "total ms", "mean us", "p50 us", "p99 us", "max us"));
+        for (Stage stage : Stage.values()) {
+            Timer t = timers[stage.ordinal()];
+            if (t.count == 0) continue;
+            sb.append(String.format(Locale.ROOT, "  %-8s %10d %12.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    name(stage), t.count, t.total / 1e6, t.total / 1e3 / t.count,
+                    t.quantile(0.5) / 1e3, t.quantile(0.99) / 1e3, t.max / 1e3));
+        }
+        sb.append("Counters:");
+        for (Counter counter : Counter.values()) {
+            sb.append(' ').append(name(counter)).append('=').append(counts[counter.ordinal()]);
+        }
+        sb.append(String.format(Locale.ROOT, "%nRates: phrases_per_s=%.0f tokens_per_s=%.0f%n",
+                rate(Counter.PHRASES), rate(Counter.TOKENS)));
+        sb.append("Sizes:");
+        for (Map.Entry<String, Long> e : sizes.entrySet()) {
+            sb.append(' ').append(e.getKey()).append('=').append(e.getValue());
+        }
+        sb.append('\n');
+
+        return sb.toString();
+    }
+
+    /**
+     * Dumps metrics as a JSON object on one line
+     *
+     * @return metrics
+     */
+    public synchronized String toJson()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "{\"elapsed_ms\":%.3f,\"heap_mb\":%d,\"stages\":{",
+                (System.nanoTime() - started) / 1e6, heapUsed() / 1024 / 1024));
+        String sep = "";
+        for (Stage stage : Stage.values()) {
+            Timer t = timers[stage.ordinal()];
+            sb.append(sep).append(String.format(Locale.ROOT,
+                    "\"%s\":{\"count\":%d,\"total_ms\":%.3f,\"mean_us\":%.3f,\"p50_us\":%.3f,\"p99_us\":%.3f,\"max_us\":%.3f}",
+                    name(stage), t.count, t.total / 1e6, t.count == 0 ? 0.0 : t.total / 1e3 / t.count,
+                    t.quantile(0.5) / 1e3, t.quantile(0.99) / 1e3, t.max / 1e3));
+            sep = ",";
+        }
+        sb.append("},\"counters\":{");
+        sep = "";
+        for (Counter counter : Counter.values()) {
+            sb.append(sep).append('"').append(name(counter)).append("\":").append(counts[counter.ordinal()]);
+            sep = ",";
+        }
+        sb.append(String.format(Locale.ROOT, "},\"rates\":{\"phrases_per_s\":%.3f,\"tokens_per_s\":%.3f},\"sizes\":{",
+                rate(Counter.PHRASES), rate(Counter.TOKENS)));
+        sep = "";
+        for (Map.Entry<String, Long> e : sizes.entrySet()) {
+            sb.append(sep).append('"').append(e.getKey()).append("\":").append(e.getValue());
+            sep = ",";
+        }
+        sb.append("}}");
+
+        return sb.toString();
+    }
+
+    /**
+     * Gets used heap memory
+     *
+     * @return used heap in bytes
+     */
+    public static long heapUsed()
+    {
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    // events per second of scoring
+    private double rate(Counter counter)
+    {
+        long nanos = counts[Counter.SCORING_NANOS.ordinal()];
+        return nanos == 0 ? 0.0 : counts[counter.ordinal()] / (nanos / 1e9);
+    }
+
+    private static String name(Enum<?> e)
+    {
+        return e.name().toLowerCase(Locale.ROOT);
+    }
+
+}